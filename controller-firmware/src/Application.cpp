@@ -1,5 +1,6 @@
 #include "Application.hpp"
 #include "Config.hpp"
+#include "Util.hpp"
 
 #include "capabilities/DebugCapability.hpp"
 #include "capabilities/TSL2561Capability.hpp"
@@ -73,6 +74,7 @@ void Application::setupCommandHandlers() {
 	registerCommandHandler("version", this, &Application::handleVersionCommand);
 	registerCommandHandler("restart", this, &Application::handleRestartCommand);
 	registerCommandHandler("port", this, &Application::handlePortCommand);
+	registerCommandHandler("batch", this, &Application::handleBatchCommand);
 }
 
 void Application::setupPorts() {
@@ -372,6 +374,50 @@ void Application::restart() {
 	NVIC_SystemReset();
 }
 
+CommandManager::Command::Response Application::handleBatchCommand(CommandManager::Command *command) {
+	if (command->argumentCount < 1) {
+		return command->createFailureResponse("expected at least one command (for example '1:batch:port\\:1\\:mode\\:ANALOG_IN:port\\:1\\:listen\\:0.01\\:500')");
+	}
+
+	// run the commands in order, each argument is a command without the id
+	std::string responseTexts[CommandManager::Command::MAX_COMMAND_ARGUMENT_COUNT];
+
+	for (int i = 0; i < command->argumentCount; i++) {
+		std::vector<std::string> tokens = Util::split(command->getString(i), ':');
+
+		CommandManager::Command partCommand;
+		partCommand.reset();
+		partCommand.sourceId = command->sourceId;
+		partCommand.id = command->id;
+		partCommand.name = tokens.size() > 0 ? tokens.at(0) : "";
+
+		for (unsigned int j = 1; j < tokens.size() && partCommand.argumentCount < CommandManager::Command::MAX_COMMAND_ARGUMENT_COUNT; j++) {
+			partCommand.arguments[partCommand.argumentCount++] = tokens.at(j);
+		}
+
+		CommandHandlerMap::iterator commandIt = commandHandlerMap.find(partCommand.name);
+
+		if (partCommand.name == "batch" || commandIt == commandHandlerMap.end()) {
+			responseTexts[i] = "ERROR:unsupported command requested";
+
+			continue;
+		}
+
+		// strip the request id from the response
+		std::string responseText = commandIt->second.call(&partCommand).getResponseText();
+
+		responseTexts[i] = responseText.substr(responseText.find(':') + 1);
+	}
+
+	CommandManager::Command::Response response = command->createSuccessResponse();
+
+	for (int i = 0; i < command->argumentCount; i++) {
+		response.addString(CommandManager::escapeArgument(responseTexts[i]));
+	}
+
+	return response;
+}
+
 CommandManager::Command::Response Application::handlePortCommand(CommandManager::Command *command) {
 	if (command->argumentCount < 2) {
 		return command->createFailureResponse("expected at least two parameters");
@@ -77,6 +77,7 @@ private:
 	CommandManager::Command::Response handleVersionCommand(CommandManager::Command *command);
 	CommandManager::Command::Response handleRestartCommand(CommandManager::Command *command);
 	CommandManager::Command::Response handlePortCommand(CommandManager::Command *command);
+	CommandManager::Command::Response handleBatchCommand(CommandManager::Command *command);
 
 	// digital port command handlers
 	CommandManager::Command::Response handlePortModeCommand(PortController *portController, CommandManager::Command *command);
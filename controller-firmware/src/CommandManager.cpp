@@ -184,9 +184,17 @@ void CommandManager::handleCommand(int sourceId, const char *commandText, int le
 	// handle commands like ID:NAME:arg1:arg2:argN, for example 1:led:1:ON
 	for (int i = 0; i < length; i++) {
 		char character = commandText[i];
+		bool isEscaped = false;
+
+		// escaped delimiters are part of the value, for example 1:name:a\:b has a single argument "a:b"
+		if (character == '\\' && i + 1 < length && commandText[i + 1] == ':') {
+			character = ':';
+			isEscaped = true;
+			i++;
+		}
 
 		// handle delimiter
-		if (character == ':') {
+		if (character == ':' && !isEscaped) {
 			delimiterCount++;
 
 			// handle id, name and arguments
@@ -51,6 +51,8 @@ CommandManager::Command::Response TLC5940Capability::handleCommand(CommandManage
 		return handleValueCommand(command);
 	} else if (action == "values") {
 		return handleValuesCommand(command);
+	} else if (action == "frame") {
+		return handleFrameCommand(command);
 	} else if (action == "test") {
 		return handleTestCommand(command);
 	} else {
@@ -60,7 +62,8 @@ CommandManager::Command::Response TLC5940Capability::handleCommand(CommandManage
 
 CommandManager::Command::Response TLC5940Capability::handleEnableCommand(CommandManager::Command *command) {
 	if (enable()) {
-		return command->createSuccessResponse();
+		// report support for the compact frame format, older firmware responds without arguments
+		return command->createSuccessResponse("frame");
 	} else {
 		return command->createFailureResponse("enabling TLC5940 led driver failed");
 	}
@@ -149,6 +152,62 @@ CommandManager::Command::Response TLC5940Capability::handleValuesCommand(Command
 	}
 }
 
+CommandManager::Command::Response TLC5940Capability::handleFrameCommand(CommandManager::Command *command) {
+	if (command->argumentCount != 5) {
+		return command->createFailureResponse("expected a total of 5 arguments (for example '1:port:1:TLC5940:frame:0:FFF7FF000')");
+	}
+
+	if (!isEnabled) {
+		log.info("setting frame requested but enable not called, enabling led driver");
+
+		if (!enable()) {
+			return command->createFailureResponse("enabling TLC5940 led driver failed");
+		}
+	}
+
+	int startChannel = command->getInt(3);
+	std::string frame = command->getString(4);
+
+	log.trace("requested to set frame from channel %d: %s", startChannel, frame.c_str());
+
+	// consecutive channels from the start channel, three hex digits (12 bits) each
+	if (frame.length() % 3 != 0) {
+		return command->createFailureResponse("invalid frame length, expected three hex digits per channel");
+	}
+
+	for (unsigned int i = 0; i < frame.length(); i += 3) {
+		int rawValue = 0;
+
+		for (unsigned int j = i; j < i + 3; j++) {
+			char digit = frame[j];
+
+			rawValue <<= 4;
+
+			if (digit >= '0' && digit <= '9') {
+				rawValue |= digit - '0';
+			} else if (digit >= 'A' && digit <= 'F') {
+				rawValue |= digit - 'A' + 10;
+			} else if (digit >= 'a' && digit <= 'f') {
+				rawValue |= digit - 'a' + 10;
+			} else {
+				return command->createFailureResponse("invalid frame, expected hex digits");
+			}
+		}
+
+		if (!setChannelRawValue(startChannel + i / 3, rawValue)) {
+			return command->createFailureResponse("setting requested frame failed, check parameters");
+		}
+	}
+
+	sendData();
+
+	if (tlc5940->isErrorDetected()) {
+		return command->createFailureResponse("output driver error condition detected");
+	} else {
+		return command->createSuccessResponse();
+	}
+}
+
 CommandManager::Command::Response TLC5940Capability::handleTestCommand(CommandManager::Command *command) {
 	bool wasEnabled = isEnabled;
 
@@ -270,6 +329,24 @@ bool TLC5940Capability::setChannelValue(int channel, float value) {
 	return true;
 }
 
+bool TLC5940Capability::setChannelRawValue(int channel, int rawValue) {
+	if (!isEnabled || tlc5940 == NULL) {
+		return false;
+	}
+
+	int maxChannel = chainLength * CHANNEL_COUNT - 1;
+
+	if (channel < 0 || channel > maxChannel) {
+		log.warn("invalid channel index %d requested (expected between 0 and %d)", channel, maxChannel);
+
+		return false;
+	}
+
+	values[channel] = rawValue;
+
+	return true;
+}
+
 void TLC5940Capability::reset() {
 	log.debug("resetting");
 
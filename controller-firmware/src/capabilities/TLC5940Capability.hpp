@@ -25,11 +25,13 @@ private:
 	CommandManager::Command::Response handleDisableCommand(CommandManager::Command *command);
 	CommandManager::Command::Response handleValueCommand(CommandManager::Command *command);
 	CommandManager::Command::Response handleValuesCommand(CommandManager::Command *command);
+	CommandManager::Command::Response handleFrameCommand(CommandManager::Command *command);
 	CommandManager::Command::Response handleTestCommand(CommandManager::Command *command);
 
 	bool enable();
 	void disable();
 	bool setChannelValue(int channel, float value);
+	bool setChannelRawValue(int channel, int rawValue);
 	void reset();
 	void sendData();
 
@@ -53,8 +53,16 @@ public class DeviceManagedObject {
      * @param parentId ID of the parent to link to, or null if no link is needed.
      */
     public boolean createOrUpdate(ManagedObjectRepresentation mo, ID extId, GId parentId) {
-        GId gid = tryGetBinding(extId);
+        return createOrUpdate(mo, extId, parentId, tryGetBinding(extId));
+    }
 
+    /**
+     * Same as {@link #createOrUpdate(ManagedObjectRepresentation, ID, GId)}
+     * for callers that have already looked up the binding of the external ID.
+     *
+     * @param gid Global ID bound to the external ID, or null if not bound.
+     */
+    public boolean createOrUpdate(ManagedObjectRepresentation mo, ID extId, GId parentId, GId gid) {
         ManagedObjectRepresentation returnedMo;
         returnedMo = (gid == null) ? create(extId, mo) : update(gid, mo);
 
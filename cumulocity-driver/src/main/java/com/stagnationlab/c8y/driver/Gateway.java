@@ -3,19 +3,28 @@ package com.stagnationlab.c8y.driver;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.extern.slf4j.Slf4j;
 
 import com.cumulocity.model.operation.OperationStatus;
+import com.cumulocity.rest.representation.event.EventRepresentation;
 import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
 import com.cumulocity.rest.representation.operation.OperationRepresentation;
+import com.cumulocity.sdk.client.Platform;
+import com.cumulocity.sdk.client.PlatformParameters;
 import com.stagnationlab.c8y.driver.controllers.AbstractController;
 import com.stagnationlab.c8y.driver.controllers.LightingController;
 import com.stagnationlab.c8y.driver.controllers.MotionController;
 import com.stagnationlab.c8y.driver.controllers.ParkingController;
 import com.stagnationlab.c8y.driver.controllers.TrainController;
+import com.stagnationlab.c8y.driver.controllers.TrainFleet;
 import com.stagnationlab.c8y.driver.controllers.TruckController;
 import com.stagnationlab.c8y.driver.controllers.WeatherController;
 import com.stagnationlab.c8y.driver.devices.AbstractDevice;
@@ -23,11 +32,21 @@ import com.stagnationlab.c8y.driver.devices.AbstractMonitoringSensor;
 import com.stagnationlab.c8y.driver.devices.etherio.EtherioMonitoringSensor;
 import com.stagnationlab.c8y.driver.services.Config;
 import com.stagnationlab.c8y.driver.services.EventBroker;
+import com.stagnationlab.c8y.driver.services.GatewayClock;
+import com.stagnationlab.c8y.driver.services.IdentityCache;
+import com.stagnationlab.c8y.driver.services.InventoryReconciler;
+import com.stagnationlab.c8y.driver.services.InventoryUpdater;
+import com.stagnationlab.c8y.driver.services.MeasurementPipeline;
+import com.stagnationlab.c8y.driver.services.ConflatingQueue;
+import com.stagnationlab.c8y.driver.services.Scheduler;
+import com.stagnationlab.c8y.driver.services.Spool;
 import com.stagnationlab.c8y.driver.services.TextToSpeech;
 import com.stagnationlab.etherio.Command;
 import com.stagnationlab.etherio.Commander;
+import com.stagnationlab.etherio.MessageDispatcher;
 import com.stagnationlab.etherio.MessageTransport;
-import com.stagnationlab.etherio.SocketClient;
+import com.stagnationlab.etherio.SelectorSocketClient;
+import com.stagnationlab.etherio.SocketEventLoop;
 
 import c8y.lx.driver.OperationExecutor;
 
@@ -41,8 +60,12 @@ public class Gateway extends AbstractDevice {
 	private final Config config = new Config();
 	private final Map<String, Commander> commanders = new HashMap<>();
 	private final EventBroker eventBroker = new EventBroker();
+	private final SocketEventLoop socketEventLoop = new SocketEventLoop("SocketEventLoop");
+	private MessageDispatcher messageDispatcher;
+	private final Map<String, Long> startupPhaseDurations = new LinkedHashMap<>();
 
 	private static final String CONFIG_FILENAME = "config.properties";
+	private static final int DEFAULT_DISCOVERY_CONCURRENCY = 4;
 
 	public Gateway() {
 		super("Gateway");
@@ -69,6 +92,8 @@ public class Gateway extends AbstractDevice {
 
 		setupShutdownHook();
 		setupConfig();
+		setupClock();
+		setupScheduler();
 		setupOperations();
 		setupCommanders();
 		setupControllers();
@@ -76,21 +101,83 @@ public class Gateway extends AbstractDevice {
 		log.info("gateway synchronous setup complete");
 	}
 
+	@Override
+	public void initialize() throws Exception {
+		long startTime = System.nanoTime();
+
+		super.initialize();
+
+		recordStartupPhase("initialize", startTime);
+	}
+
+	@Override
+	public void initialize(Platform platform) throws Exception {
+		long startTime = System.nanoTime();
+
+		// start the pipeline before the children so their measurements are batched from the start
+		Spool.INSTANCE.start(config);
+		IdentityCache.INSTANCE.start(config, getPlatformName(platform));
+		MeasurementPipeline.INSTANCE.start(platform, config);
+		InventoryUpdater.INSTANCE.start(platform, config);
+
+		super.initialize(platform);
+
+		Spool.INSTANCE.setUploader(Spool.RecordType.EVENT, this::uploadSpooledEvents);
+
+		recordStartupPhase("initialize platform", startTime);
+	}
+
+	@Override
+	public void initializeInventory(ManagedObjectRepresentation owner) {
+		long startTime = System.nanoTime();
+
+		super.initializeInventory(owner);
+
+		recordStartupPhase("initialize inventory", startTime);
+	}
+
 	@Override
 	public void discoverChildren(ManagedObjectRepresentation parent) {
-		super.discoverChildren(parent);
+		long startTime = System.nanoTime();
+
+		// fetch the existing devices up front so only the missing ones need requests of their own
+		InventoryReconciler.INSTANCE.load(platform, parent.getId(), config);
+
+		recordStartupPhase("fetch device tree", startTime);
+
+		startTime = System.nanoTime();
+
+		try {
+			discoverDeviceTree(parent);
+		} finally {
+			InventoryReconciler.INSTANCE.clear();
+		}
+
+		recordStartupPhase("discover devices", startTime);
+
+		startTime = System.nanoTime();
 
 		establishCommanderConnections();
+
+		recordStartupPhase("connect commanders", startTime);
 	}
 
 	@Override
 	public void start() {
+		long startTime = System.nanoTime();
+
 		super.start();
 
 		// update initial state
 		updateState(state);
 
-		log.info("gateway started");
+		recordStartupPhase("start", startTime);
+
+		log.info("gateway started ({})", startupPhaseDurations.entrySet().stream()
+				.map(phase -> phase.getKey() + ": " + phase.getValue() + "ms")
+				.reduce((a, b) -> a + ", " + b)
+				.orElse("")
+		);
 	}
 
 	@Override
@@ -116,9 +203,34 @@ public class Gateway extends AbstractDevice {
 			}
 		}
 
+		// the devices have cancelled their intervals by now, any task still scheduled is reported
+		Scheduler.INSTANCE.shutdown();
+		socketEventLoop.shutdown();
+		ConflatingQueue.INSTANCE.shutdown();
+
+		// upload what is still queued, the final gateway state below is then sent directly
+		MeasurementPipeline.INSTANCE.shutdown();
+		InventoryUpdater.INSTANCE.shutdown();
+		IdentityCache.INSTANCE.shutdown();
+
+		if (messageDispatcher != null) {
+			log.info(
+					"shutting down message dispatcher (max queue depth: {}, dropped: {}, stalls: {}, total stall time: {}ms)",
+					messageDispatcher.getMaxQueueDepth(),
+					messageDispatcher.getDroppedCount(),
+					messageDispatcher.getStallCount(),
+					messageDispatcher.getTotalStallTime()
+			);
+
+			messageDispatcher.shutdown();
+		}
+
 		state.reset();
 		updateState(state);
 
+		// whatever could not be sent stays in the spool for the next start
+		Spool.INSTANCE.shutdown();
+
 		log.info("graceful shutdown complete");
 	}
 
@@ -134,6 +246,69 @@ public class Gateway extends AbstractDevice {
 		TextToSpeech.INSTANCE.speak(errorMessage, false);
 	}
 
+	// sibling subtrees are discovered concurrently, each device still before its children
+	private void discoverDeviceTree(ManagedObjectRepresentation parent) {
+		int concurrency = config.getInt("discovery.concurrency", DEFAULT_DISCOVERY_CONCURRENCY);
+		AtomicInteger threadCounter = new AtomicInteger();
+
+		log.info("discovering devices using {} threads", concurrency);
+
+		ExecutorService discoveryExecutor = Executors.newFixedThreadPool(
+				concurrency,
+				runnable -> {
+					Thread thread = new Thread(runnable, "Discovery-" + threadCounter.getAndIncrement());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+		);
+
+		try {
+			discoverChildren(parent, discoveryExecutor).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+
+			throw e;
+		} finally {
+			discoveryExecutor.shutdown();
+		}
+	}
+
+	// the cached identities are only valid on the platform they were created on
+	private static String getPlatformName(Platform platform) {
+		if (!(platform instanceof PlatformParameters)) {
+			return "default";
+		}
+
+		PlatformParameters platformParameters = (PlatformParameters)platform;
+
+		return platformParameters.getTenantId() + "@" + platformParameters.getHost();
+	}
+
+	private void recordStartupPhase(String name, long startTime) {
+		long duration = (System.nanoTime() - startTime) / 1000000L;
+
+		startupPhaseDurations.put(name, duration);
+
+		log.info("startup phase '{}' took {}ms", name, duration);
+	}
+
+	private void uploadSpooledEvents(List<String> payloads) {
+		for (String payload : payloads) {
+			try {
+				eventApi.create(Spool.parse(payload, EventRepresentation.class));
+			} catch (RuntimeException e) {
+				if (Spool.isRetriable(e)) {
+					throw e;
+				}
+
+				Spool.INSTANCE.reject(Spool.RecordType.EVENT, e);
+			}
+		}
+	}
+
 	private void establishCommanderConnections() {
 		int connectTimeout = config.getInt("socket.connectTimeout");
 
@@ -171,11 +346,36 @@ public class Gateway extends AbstractDevice {
 		}
 	}
 
+	private void setupClock() {
+		// runs faster than real time for load and regression runs
+		GatewayClock.setup(config);
+	}
+
+	private void setupScheduler() {
+		log.info("setting up scheduler");
+
+		// the periodic tasks of all the devices and controllers share the same few threads
+		Scheduler.INSTANCE.start(config);
+
+		// the sensor value streams are handled on their own threads so slow handlers don't hold up the timers
+		ConflatingQueue.INSTANCE.start(config);
+	}
+
 	private void setupCommanders() {
 		log.info("setting up commanders");
 
 		List<String> commanderNames = config.getStringArray("commander.names");
 
+		// all commander sockets are served by a single event loop thread
+		socketEventLoop.start();
+
+		// received messages are handled on the dispatcher threads so slow listeners don't block reading
+		messageDispatcher = new MessageDispatcher(
+				"MessageDispatcher",
+				config.getInt("socket.dispatcherLaneCapacity", MessageDispatcher.DEFAULT_LANE_CAPACITY),
+				config.getInt("socket.dispatcherThreadCount", MessageDispatcher.DEFAULT_THREAD_COUNT)
+		);
+
 		for (String commanderName : commanderNames) {
 			log.info("creating commander {}", commanderName);
 
@@ -198,9 +398,7 @@ public class Gateway extends AbstractDevice {
 				new WeatherController("Weather controller", commanders, config, eventBroker)
 		);
 
-		registerController(
-				new TrainController("Train controller", commanders, config, eventBroker)
-		);
+		setupTrains();
 
 		registerController(
 				new TruckController("Truck controller", commanders, config, eventBroker)
@@ -211,6 +409,25 @@ public class Gateway extends AbstractDevice {
 		);
 	}
 
+	private void setupTrains() {
+		List<String> trainNames = config.getStringArray("train.names");
+
+		log.info("setting up {} trains", trainNames.size());
+
+		// the trains share the stops and the track
+		TrainFleet trainFleet = new TrainFleet(commanders, config);
+		trainFleet.setup();
+
+		for (String trainName : trainNames) {
+			// the original train keeps its controller name so its device is found again
+			String controllerName = trainName.equals("train") ? "Train controller" : "Train controller " + trainName;
+
+			registerController(
+					new TrainController(controllerName, trainName, commanders, config, eventBroker, trainFleet)
+			);
+		}
+	}
+
 	private void setupOperations() {
 		setupRestartOperation();
 	}
@@ -249,16 +466,21 @@ public class Gateway extends AbstractDevice {
 		int defaultPort = config.getInt("socket.defaultPort");
 		int defaultPingInterval = config.getInt("socket.defaultPingInterval");
 		int defaultReconnectTimeout = config.getInt("socket.defaultReconnectTimeout");
+		int defaultCommandTimeout = config.getInt("socket.defaultCommandTimeout", (int)Commander.DEFAULT_COMMAND_TIMEOUT);
 
 		String host = config.getString("commander." + name + ".host");
 		int port = config.getInt("commander." + name + ".port", defaultPort);
 		int pingInterval = config.getInt("commander." + name + ".pingInterval", defaultPingInterval);
 		int reconnectTimeout = config.getInt("commander." + name + ".reconnectTimeout", defaultReconnectTimeout);
+		int commandTimeout = config.getInt("commander." + name + ".commandTimeout", defaultCommandTimeout);
 
 		log.info("connecting to controller commander '{}' at {}:{}", name, host, port);
 
-		SocketClient socketClient = new SocketClient(host, port, reconnectTimeout);
-		Commander commander = new Commander(socketClient);
+		SelectorSocketClient socketClient = new SelectorSocketClient(socketEventLoop, host, port, reconnectTimeout);
+		Commander commander = new Commander(socketClient, messageDispatcher);
+
+		// fail commands that never get a response instead of leaking them
+		commander.setDefaultCommandTimeout(commandTimeout);
 
 		// listen for socket events
 		socketClient.addEventListener(new MessageTransport.EventListener() {
@@ -308,7 +530,7 @@ public class Gateway extends AbstractDevice {
 		});
 
 		// set ping strategy to use
-		socketClient.setPingStrategy(new SocketClient.PingStrategy() {
+		socketClient.setPingStrategy(new MessageTransport.PingStrategy() {
 			@Override
 			public String getPingMessage() {
 				return "0:ping\n";
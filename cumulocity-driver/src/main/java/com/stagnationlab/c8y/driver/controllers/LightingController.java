@@ -1,7 +1,10 @@
 package com.stagnationlab.c8y.driver.controllers;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -18,20 +21,52 @@ import com.stagnationlab.c8y.driver.operations.SetChannelValue;
 import com.stagnationlab.c8y.driver.operations.SetChannelValues;
 import com.stagnationlab.c8y.driver.services.Config;
 import com.stagnationlab.c8y.driver.services.EventBroker;
+import com.stagnationlab.c8y.driver.services.Scheduler;
 import com.stagnationlab.c8y.driver.services.Util;
 import com.stagnationlab.etherio.Commander;
 
 import c8y.lx.driver.OperationExecutor;
 
+/**
+ * Controls the street lights according to the detected ambient light level.
+ *
+ * The light levels are not set directly but faded towards their targets by a single frame ticker shared by all the
+ * drivers. Every frame sends at most one values command per driver and skips the drivers that are still busy with the
+ * previous frame, so a slow board only gets fewer intermediate steps.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
 @Slf4j
 public class LightingController extends AbstractController {
 
+	private static final int DEFAULT_FRAME_RATE = 25;
+	private static final int DEFAULT_FADE_DURATION = 500;
 	private static final float LIGHT_LEVEL_CHANGE_THRESHOLD = 0.01f;
 	private static final float LIGHT_LEVEL_TURN_ON_THRESHOLD = 0.2f;
 	private static final float LIGHT_LEVEL_TURN_OFF_THRESHOLD = 0.1f;
 
 	private final Lighting state = new Lighting();
 	private final Map<String, AbstractMultiDacActuator> driverMap = new HashMap<>();
+
+	// routing table compiled from the configuration once, indexed by light number and driver index
+	private int[] lightDriverIndexes = new int[0];
+	private int[] lightChannels = new int[0];
+	private AbstractMultiDacActuator[] drivers = new AbstractMultiDacActuator[0];
+	private int[][] driverChannels = new int[0][];
+	private int[][] driverLights = new int[0][];
+
+	// reused buffers of the values to send to each driver
+	private float[][] driverValueBuffers = new float[0][];
+
+	// fade state indexed by light number and driver index
+	private float[] currentLevels = new float[0];
+	private float[] targetLevels = new float[0];
+	private float[] fadeSteps = new float[0];
+	private boolean[] isDriverFramePending = new boolean[0];
+	private final long frameInterval;
+	private final long fadeDuration;
+	private ScheduledFuture<?> frameTicker;
+	private long renderedFrameCount = 0;
+	private long skippedFrameCount = 0;
 	private float lastAutomaticLightLevel = 0.0f;
 	private final float lowLightValue;
 	private final float highLightValue;
@@ -48,6 +83,9 @@ public class LightingController extends AbstractController {
 		lowLightOutput = config.getFloat("lighting.lowLightOutput");
 		highLightOutput = config.getFloat("lighting.highLightOutput");
 		outputLevelToPowerMultiplier = config.getFloat("lighting.outputLevelToPowerMultiplier");
+
+		frameInterval = Math.max(1000 / Math.max(config.getInt("lighting.frameRate", DEFAULT_FRAME_RATE), 1), 1);
+		fadeDuration = config.getInt("lighting.fadeDuration", DEFAULT_FADE_DURATION);
 	}
 
 	@Override
@@ -80,7 +118,9 @@ public class LightingController extends AbstractController {
 
 	@Override
 	public void shutdown() {
-		log.info("shutting down lighting controller");
+		log.info("shutting down lighting controller (rendered frames: {}, skipped driver frames: {})", renderedFrameCount, skippedFrameCount);
+
+		stopFrameTicker();
 
 		state.reset();
 		updateState(state);
@@ -172,6 +212,12 @@ public class LightingController extends AbstractController {
 
 		log.debug("setting up light drivers for {} lights", lightCount);
 
+		List<AbstractMultiDacActuator> driverList = new ArrayList<>();
+		List<List<Integer>> driverLightLists = new ArrayList<>();
+
+		lightDriverIndexes = new int[lightCount];
+		lightChannels = new int[lightCount];
+
 		for (int lightNumber = 0; lightNumber < lightCount; lightNumber++) {
 			String commanderName = config.getString("lighting.light." + lightNumber + ".commander");
 
@@ -185,10 +231,63 @@ public class LightingController extends AbstractController {
 
 				AbstractMultiDacActuator driver = new EtherioMultiDacActuator("Lighting controller led driver for commander " + commanderName, commander, ledDriverPort, ledDriverChannels);
 
+				driver.setCoalesceWindow(config.getInt("lighting.coalesceWindow", (int)AbstractMultiDacActuator.DEFAULT_COALESCE_WINDOW));
+
 				driverMap.put(commanderName, driver);
+				driverList.add(driver);
+				driverLightLists.add(new ArrayList<>());
 
 				registerChild(driver);
 			}
+
+			int driverIndex = driverList.indexOf(driverMap.get(commanderName));
+			int channel;
+
+			try {
+				channel = config.getInt("lighting.light." + lightNumber + ".channel");
+			} catch (Exception e) {
+				log.warn("light {} has no valid channel configured, it will not be controlled ({} - {})", lightNumber, e.getClass().getSimpleName(), e.getMessage());
+
+				lightDriverIndexes[lightNumber] = -1;
+
+				continue;
+			}
+
+			lightDriverIndexes[lightNumber] = driverIndex;
+			lightChannels[lightNumber] = channel;
+			driverLightLists.get(driverIndex).add(lightNumber);
+		}
+
+		compileDriverTable(driverList, driverLightLists);
+
+		currentLevels = new float[lightCount];
+		targetLevels = new float[lightCount];
+		fadeSteps = new float[lightCount];
+	}
+
+	private void compileDriverTable(List<AbstractMultiDacActuator> driverList, List<List<Integer>> driverLightLists) {
+		int driverCount = driverList.size();
+
+		drivers = driverList.toArray(new AbstractMultiDacActuator[driverCount]);
+		driverChannels = new int[driverCount][];
+		driverLights = new int[driverCount][];
+		driverValueBuffers = new float[driverCount][];
+		isDriverFramePending = new boolean[driverCount];
+
+		for (int driverIndex = 0; driverIndex < driverCount; driverIndex++) {
+			List<Integer> lightList = driverLightLists.get(driverIndex);
+			int lightCount = lightList.size();
+
+			driverChannels[driverIndex] = new int[lightCount];
+			driverLights[driverIndex] = new int[lightCount];
+			driverValueBuffers[driverIndex] = new float[lightCount];
+
+			for (int i = 0; i < lightCount; i++) {
+				int lightNumber = lightList.get(i);
+
+				driverLights[driverIndex][i] = lightNumber;
+				driverChannels[driverIndex][i] = lightChannels[lightNumber];
+			}
 		}
 	}
 
@@ -338,61 +437,150 @@ public class LightingController extends AbstractController {
 		return Util.map(detectedLightLevel, lowLightValue, highLightValue, lowLightOutput, highLightOutput);
 	}
 
-	private void setAllLightLevels(float value) {
-		log.debug("setting all light levels to {}", value);
+	/**
+	 * Returns the detected light levels where the lights are turned on and off, calculated from the calibration.
+	 *
+	 * @param config configuration containing the lighting calibration
+	 * @return light levels of turning the lights on and off
+	 */
+	public static float[] getLightLevelEdgeThresholds(Config config) {
+		float lowLightValue = config.getFloat("lighting.lowLightValue");
+		float highLightValue = config.getFloat("lighting.highLightValue");
+		float lowLightOutput = config.getFloat("lighting.lowLightOutput");
+		float highLightOutput = config.getFloat("lighting.highLightOutput");
+
+		return new float[] {
+				Util.map(LIGHT_LEVEL_TURN_ON_THRESHOLD, lowLightOutput, highLightOutput, lowLightValue, highLightValue),
+				Util.map(LIGHT_LEVEL_TURN_OFF_THRESHOLD, lowLightOutput, highLightOutput, lowLightValue, highLightValue),
+		};
+	}
 
-		Map<Integer, Float> channelValueMap = new HashMap<>();
-		int lightCount = config.getInt("lighting.lightCount");
+	private synchronized void setAllLightLevels(float value) {
+		log.debug("fading all light levels to {}", value);
 
-		for (int lightNumber = 0; lightNumber < lightCount; lightNumber++) {
-			channelValueMap.put(lightNumber, value);
+		for (int lightNumber = 0; lightNumber < lightDriverIndexes.length; lightNumber++) {
+			if (isLightControlled(lightNumber)) {
+				fadeLightLevel(lightNumber, value);
+			}
 		}
 
-		setLightLevels(channelValueMap);
+		startFrameTicker();
 	}
 
-	private void setLightLevel(int lightNumber, float value) {
-		try {
-			String commanderName = config.getString("lighting.light." + lightNumber + ".commander");
-			int channelIndex = config.getInt("lighting.light." + lightNumber + ".channel");
-			AbstractMultiDacActuator driver = driverMap.get(commanderName);
-
-			log.trace("setting light {} to {} on commander {} channel {}", lightNumber, value, commanderName, channelIndex);
+	private synchronized void setLightLevel(int lightNumber, float value) {
+		if (!isLightControlled(lightNumber)) {
+			log.warn("setting light {} to {} failed, the light is not configured", lightNumber, value);
 
-			driver.setChannelValue(channelIndex, value);
-		} catch (Exception e) {
-			log.warn("setting light {} to {} failed ({} - {})", lightNumber, value, e.getClass().getSimpleName(), e.getMessage());
+			return;
 		}
-	}
 
-	private void setLightLevels(Map<Integer, Float> channelValueMap) {
-		Map<String, Map<Integer, Float>> commanderChannelValueMap = new HashMap<>();
+		log.trace("fading light {} to {}", lightNumber, value);
 
+		fadeLightLevel(lightNumber, value);
+		startFrameTicker();
+	}
+
+	private synchronized void setLightLevels(Map<Integer, Float> channelValueMap) {
 		for (Map.Entry<Integer, Float> channelValuePair : channelValueMap.entrySet()) {
 			int lightNumber = channelValuePair.getKey();
 			float value = channelValuePair.getValue();
 
-			try {
-				String commanderName = config.getString("lighting.light." + lightNumber + ".commander");
-				int channelIndex = config.getInt("lighting.light." + lightNumber + ".channel");
+			if (!isLightControlled(lightNumber)) {
+				log.warn("setting light {} to {} failed, the light is not configured", lightNumber, value);
 
-				if (!commanderChannelValueMap.containsKey(commanderName)) {
-					commanderChannelValueMap.put(commanderName, new HashMap<>());
-				}
+				continue;
+			}
 
-				log.trace("setting light {} to {} on commander {} channel {}", lightNumber, value, commanderName, channelIndex);
+			log.trace("fading light {} to {}", lightNumber, value);
 
-				commanderChannelValueMap.get(commanderName).put(channelIndex, value);
-			} catch (Exception e) {
-				log.warn("setting light {} to {} failed ({} - {})", lightNumber, value, e.getClass().getSimpleName(), e.getMessage());
+			fadeLightLevel(lightNumber, value);
+		}
+
+		startFrameTicker();
+	}
+
+	private void fadeLightLevel(int lightNumber, float value) {
+		targetLevels[lightNumber] = value;
+
+		// the fade takes the same time regardless of the distance, zero duration jumps on the next frame
+		float distance = Math.abs(value - currentLevels[lightNumber]);
+
+		fadeSteps[lightNumber] = fadeDuration > 0 ? distance * frameInterval / fadeDuration : distance;
+	}
+
+	private synchronized void startFrameTicker() {
+		if (frameTicker != null) {
+			return;
+		}
+
+		frameTicker = Scheduler.INSTANCE.setInterval("lighting frame", this::renderFrame, frameInterval);
+	}
+
+	private synchronized void stopFrameTicker() {
+		if (frameTicker == null) {
+			return;
+		}
+
+		frameTicker.cancel(false);
+		frameTicker = null;
+	}
+
+	private synchronized void renderFrame() {
+		boolean isFading = false;
+
+		// move every light one step closer to its target
+		for (int lightNumber = 0; lightNumber < currentLevels.length; lightNumber++) {
+			float current = currentLevels[lightNumber];
+			float target = targetLevels[lightNumber];
+
+			if (current == target || !isLightControlled(lightNumber)) {
+				continue;
 			}
+
+			float step = fadeSteps[lightNumber];
+
+			currentLevels[lightNumber] = Math.abs(target - current) <= step ? target : current + Math.signum(target - current) * step;
+			isDriverFramePending[lightDriverIndexes[lightNumber]] = true;
+			isFading |= currentLevels[lightNumber] != target;
 		}
 
-		for (String commanderName : commanderChannelValueMap.keySet()) {
-			Map<Integer, Float> values = commanderChannelValueMap.get(commanderName);
-			AbstractMultiDacActuator driver = driverMap.get(commanderName);
+		// one values command per driver, a driver still busy with the previous frame gets the latest levels next time
+		for (int driverIndex = 0; driverIndex < drivers.length; driverIndex++) {
+			if (!isDriverFramePending[driverIndex]) {
+				continue;
+			}
+
+			AbstractMultiDacActuator driver = drivers[driverIndex];
+
+			if (driver.isBusy()) {
+				skippedFrameCount++;
+				isFading = true;
+
+				continue;
+			}
+
+			int[] lights = driverLights[driverIndex];
+			float[] values = driverValueBuffers[driverIndex];
 
-			driver.setChannelValues(values);
+			for (int i = 0; i < lights.length; i++) {
+				values[i] = currentLevels[lights[i]];
+			}
+
+			driver.setChannelValues(driverChannels[driverIndex], values, lights.length);
+
+			isDriverFramePending[driverIndex] = false;
 		}
+
+		renderedFrameCount++;
+
+		if (!isFading) {
+			log.trace("all lights have reached their target levels, stopping frame ticker");
+
+			stopFrameTicker();
+		}
+	}
+
+	private boolean isLightControlled(int lightNumber) {
+		return lightNumber >= 0 && lightNumber < lightDriverIndexes.length && lightDriverIndexes[lightNumber] != -1;
 	}
 }
@@ -14,9 +14,9 @@ import com.stagnationlab.c8y.driver.events.ControllerActivatedEvent;
 import com.stagnationlab.c8y.driver.fragments.controllers.Parking;
 import com.stagnationlab.c8y.driver.services.Config;
 import com.stagnationlab.c8y.driver.services.EventBroker;
+import com.stagnationlab.c8y.driver.services.GatewayClock;
 import com.stagnationlab.c8y.driver.services.Scheduler;
 import com.stagnationlab.c8y.driver.services.TextToSpeech;
-import com.stagnationlab.c8y.driver.services.Util;
 import com.stagnationlab.etherio.Commander;
 import com.stagnationlab.etherio.MessageTransport;
 
@@ -161,7 +161,7 @@ public class ParkingController extends AbstractController {
 	}
 
 	private void sendControlledActivatedEventIfNew() {
-		long timeSinceLastActivationReport = Util.since(lastActivationReportedTime);
+		long timeSinceLastActivationReport = GatewayClock.since(lastActivationReportedTime);
 
 		if (timeSinceLastActivationReport < CONTROLLER_ACTIVATION_MIN_PAUSE) {
 			log.debug("new activation requested too soon ({}ms since last time), ignoring it", timeSinceLastActivationReport);
@@ -173,7 +173,7 @@ public class ParkingController extends AbstractController {
 
 		reportEvent(new ControllerActivatedEvent());
 
-		lastActivationReportedTime = Util.now();
+		lastActivationReportedTime = GatewayClock.now();
 	}
 
 	private String getSlotName(int index) {
@@ -223,7 +223,7 @@ public class ParkingController extends AbstractController {
 	}
 
 	private void startCostInterval(int index) {
-		slotCostIntervalMap.put(index, Scheduler.setInterval(() -> {
+		slotCostIntervalMap.put(index, Scheduler.INSTANCE.setInterval("parking slot " + index + " cost", () -> {
 			Parking.SlotState slotState = state.slotByIndex(index);
 
 			slotState.setCost(slotState.getCost() + costStep);
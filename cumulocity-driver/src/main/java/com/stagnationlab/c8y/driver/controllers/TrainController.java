@@ -1,139 +1,31 @@
 package com.stagnationlab.c8y.driver.controllers;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
 
-import com.stagnationlab.c8y.driver.Gateway;
 import com.stagnationlab.c8y.driver.events.ControllerActivatedEvent;
 import com.stagnationlab.c8y.driver.events.ControllerDeactivatedEvent;
 import com.stagnationlab.c8y.driver.measurements.BatteryMeasurement;
 import com.stagnationlab.c8y.driver.services.BatteryMonitor;
 import com.stagnationlab.c8y.driver.services.Config;
 import com.stagnationlab.c8y.driver.services.EventBroker;
+import com.stagnationlab.c8y.driver.services.GatewayClock;
+import com.stagnationlab.c8y.driver.services.Scheduler;
 import com.stagnationlab.c8y.driver.services.TextToSpeech;
-import com.stagnationlab.c8y.driver.services.Util;
 import com.stagnationlab.etherio.Command;
 import com.stagnationlab.etherio.Commander;
 import com.stagnationlab.etherio.MessageTransport;
-import com.stagnationlab.etherio.PortController;
-
-interface TrainStopEventListener {
-	void onTrainEnter(String stopName);
-	void onTrainExit(String stopName);
-}
 
 @Slf4j
-public class TrainController extends AbstractController implements TrainStopEventListener, Runnable {
-
-	private static final String TAG_READER_CAPABILITY = "PN532";
-	private static final String COMMAND_ENABLE = "enable";
-	private static final String ACTION_ENTER = "enter";
-	private static final String ACTION_EXIT = "exit";
-	private static final String ACTION_UID = "uid";
-	private static final long MINIMUM_TICKET_BUYING_TIMEOUT = 5000;
-
-	class TrainStop {
-		private final PortController portController;
-		private final String name;
-		private final List<TrainStopEventListener> eventListeners = new ArrayList<>();
-		private final List<String> trainTagUidList;
-
-		TrainStop(PortController portController, String name, List<String> trainTagUidList) {
-			this.portController = portController;
-			this.name = name;
-			this.trainTagUidList = trainTagUidList;
-		}
-
-		void addEventListener(TrainStopEventListener eventListener) {
-			eventListeners.add(eventListener);
-		}
-
-		void initialize() {
-			portController.getCommander().getMessageTransport().addEventListener(new MessageTransport.EventListener() {
-
-				@Override
-				public void onOpen(boolean isFirstConnect) {
-					if (isFirstConnect) {
-						setupEventListeners();
-					}
-
-					startTagListener();
-				}
-			});
-		}
-
-		private void setupEventListeners() {
-			portController.addEventListener(new PortController.PortEventListener() {
-				@Override
-				public void onPortCapabilityUpdate(int id, String capabilityName, List<String> arguments) {
-					if (!capabilityName.equals(TAG_READER_CAPABILITY)) {
-						return;
-					}
-
-					String type = arguments.get(0);
-
-					switch (type) {
-						case ACTION_UID: {
-							String action = arguments.get(1);
-							String uid = arguments.get(2);
-
-							handleTagEvent(action, uid);
-							break;
-						}
-					}
-				}
-			});
-		}
-
-		private void startTagListener() {
-			// request the NFC capability on transport open
-			portController.sendPortCommand(TAG_READER_CAPABILITY, COMMAND_ENABLE)
-				.thenAccept(Gateway::handlePortCommandResponse);
-		}
-
-		private void handleTagEvent(String action, String uid) {
-			log.debug("got tag '{}' for '{}'", action, uid);
-
-			switch (action) {
-				case ACTION_ENTER:
-					handleTagEnter(uid);
-					break;
-
-				case ACTION_EXIT:
-					handleTagExit(uid);
-					break;
-			}
-		}
-
-		private void handleTagEnter(String uid) {
-			if (!trainTagUidList.contains(uid)) {
-				return;
-			}
-
-			log.debug("train tag '{}' entered", uid);
-
-			eventListeners.forEach((listener) -> listener.onTrainEnter(name));
-		}
-
-		private void handleTagExit(String uid) {
-			if (!trainTagUidList.contains(uid)) {
-				return;
-			}
-
-			log.debug("train tag '{}' exited", uid);
-
-			eventListeners.forEach((listener) -> listener.onTrainExit(name));
-		}
+public class TrainController extends AbstractController implements TrainStopEventListener {
 
-		public String getName() {
-			return name;
-		}
-	}
+	private static final String DEFAULT_TRAIN_NAME = "train";
+	private static final long NO_CHECK_NEEDED = -1;
 
 	class Train {
 
@@ -160,13 +52,13 @@ public class TrainController extends AbstractController implements TrainStopEven
 		Train(Commander commander) {
 			this.commander = commander;
 
-			normalSpeed = config.getInt("train.normalSpeed");
-			requestBatteryVoltageInterval = config.getInt("train.requestBatteryVoltageInterval");
+			normalSpeed = config.getInt(getConfigKey("normalSpeed"));
+			requestBatteryVoltageInterval = config.getInt(getConfigKey("requestBatteryVoltageInterval"));
 
-			int lowBatteryPercentageThreshold = config.getInt("train.lowBatteryPercentageThreshold");
-			int lowBatteryReportingInterval = config.getInt("train.lowBatteryReportingInterval");
+			int lowBatteryPercentageThreshold = config.getInt(getConfigKey("lowBatteryPercentageThreshold"));
+			int lowBatteryReportingInterval = config.getInt(getConfigKey("lowBatteryReportingInterval"));
 
-			batteryMonitor = new BatteryMonitor("The train", lowBatteryPercentageThreshold, lowBatteryReportingInterval);
+			batteryMonitor = new BatteryMonitor(getSpokenName(), lowBatteryPercentageThreshold, lowBatteryReportingInterval);
 
 			log.debug("train normal speed: {}%, battery voltage update interval: {}ms", normalSpeed, requestBatteryVoltageInterval);
 		}
@@ -284,9 +176,9 @@ public class TrainController extends AbstractController implements TrainStopEven
 		}
 
 		private void setObstacleParameters() {
-			float obstacleDetectedThreshold = config.getFloat("train.obstacleDetectedThreshold");
-			float obstacleClearedThreshold = config.getFloat("train.obstacleClearedThreshold");
-			int brakeDuration = config.getInt("train.brakeDuration");
+			float obstacleDetectedThreshold = config.getFloat(getConfigKey("obstacleDetectedThreshold"));
+			float obstacleClearedThreshold = config.getFloat(getConfigKey("obstacleClearedThreshold"));
+			int brakeDuration = config.getInt(getConfigKey("brakeDuration"));
 
 			log.debug("setting detected obstacle distance at {}cm and cleared at {}cm", obstacleDetectedThreshold, obstacleClearedThreshold);
 
@@ -309,6 +201,9 @@ public class TrainController extends AbstractController implements TrainStopEven
 			reportMeasurement(new BatteryMeasurement(batteryVoltage, batteryChargePercentage, isCharging));
 
 			batteryMonitor.checkForLowBattery(batteryChargePercentage, isCharging);
+
+			// the idle operation waits for the charging to stop
+			advance();
 		}
 
 		private void handleObstacleDetectedEvent(float obstacleDistance) {
@@ -319,10 +214,10 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 			updateState(state);
 
-			if (state.getTargetSpeed() > 0 && Util.since(lastObstacleNotificationTime) >= MIN_OBSTACLE_DETECTED_REPORT_PAUSE_MS) {
+			if (state.getTargetSpeed() > 0 && GatewayClock.since(lastObstacleNotificationTime) >= MIN_OBSTACLE_DETECTED_REPORT_PAUSE_MS) {
 				TextToSpeech.INSTANCE.speak("Obstacle detected", true);
 
-				lastObstacleNotificationTime = Util.now();
+				lastObstacleNotificationTime = GatewayClock.now();
 				isExpectingObstacleClearedEvent = true;
 			}
 		}
@@ -367,11 +262,19 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 		public abstract boolean isComplete();
 
-		@SuppressWarnings({ "unused", "EmptyMethod" })
-		void step(long dt) {
+		void onTrackReleased() {
 			// nothing by default
 		}
 
+		/**
+		 * Returns the time after which the operation may become complete without any events.
+		 *
+		 * @return delay in milliseconds or NO_CHECK_NEEDED if only events can complete the operation
+		 */
+		long getCheckDelay() {
+			return NO_CHECK_NEEDED;
+		}
+
 		@Override
 		public void onTrainEnter(String stopName) {
 			// nothing to do
@@ -391,6 +294,7 @@ public class TrainController extends AbstractController implements TrainStopEven
 		private final boolean isFinalStop;
 		private boolean hasEnteredStop = false;
 		private boolean isStarted = false;
+		private boolean isWaitingForTrack = false;
 		private long stopTime = 0;
 
 		DriveToStopTrainOperation(Train train, String targetStopName, boolean isFinalStop) {
@@ -409,6 +313,26 @@ public class TrainController extends AbstractController implements TrainStopEven
 		public void start() {
 			isStarted = true;
 
+			depart();
+		}
+
+		@Override
+		void onTrackReleased() {
+			if (isStarted && isWaitingForTrack) {
+				depart();
+			}
+		}
+
+		private void depart() {
+			// another train is still on the way to the same stop
+			if (!fleet.reserveBlock(TrainController.this, targetStopName)) {
+				isWaitingForTrack = true;
+
+				return;
+			}
+
+			isWaitingForTrack = false;
+
 			train.forward();
 
 			if (isFinalStop) {
@@ -424,12 +348,13 @@ public class TrainController extends AbstractController implements TrainStopEven
 		public void reset() {
 			hasEnteredStop = false;
 			isStarted = false;
+			isWaitingForTrack = false;
 			stopTime = 0;
 		}
 
 		@Override
 		public void onTrainEnter(String stopName) {
-			if (!isStarted) {
+			if (!isStarted || isWaitingForTrack) {
 				return;
 			}
 
@@ -440,7 +365,7 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 				train.stop();
 
-				stopTime = Util.now();
+				stopTime = GatewayClock.now();
 
 				reportStoppedInStation();
 			}
@@ -452,7 +377,16 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 		@Override
 		public boolean isComplete() {
-			return isStarted && hasEnteredStop && Util.since(stopTime) >= 1000;
+			return isStarted && hasEnteredStop && GatewayClock.since(stopTime) >= 1000;
+		}
+
+		@Override
+		long getCheckDelay() {
+			if (!isStarted || !hasEnteredStop) {
+				return NO_CHECK_NEEDED;
+			}
+
+			return Math.max(1000 - GatewayClock.since(stopTime), 0);
 		}
 
 		String getTargetStopName() {
@@ -475,7 +409,7 @@ public class TrainController extends AbstractController implements TrainStopEven
 		@Override
 		public void start() {
 			isStarted = true;
-			startTime = Util.now();
+			startTime = GatewayClock.now();
 		}
 
 		@Override
@@ -491,12 +425,23 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 		@Override
 		public boolean isComplete() {
-			return isStarted && Util.since(startTime) >= duration;
+			return isStarted && GatewayClock.since(startTime) >= duration;
+		}
+
+		@Override
+		long getCheckDelay() {
+			if (!isStarted) {
+				return NO_CHECK_NEEDED;
+			}
+
+			return Math.max(duration - GatewayClock.since(startTime), 0);
 		}
 	}
 
 	class IdleTrainOperation extends TrainOperation {
 
+		private static final long NOT_CHARGING_THRESHOLD = 60 * 1000; // 60 seconds
+
 		private long startTime = 0;
 
 		IdleTrainOperation(Train train) {
@@ -509,7 +454,7 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 			reportEvent(new ControllerDeactivatedEvent());
 
-			startTime = System.currentTimeMillis();
+			startTime = GatewayClock.now();
 		}
 
 		@Override
@@ -523,10 +468,9 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 		@Override
 		public boolean isComplete() {
-			long currentTime = System.currentTimeMillis();
+			long currentTime = GatewayClock.now();
 			long idleDuration = currentTime - startTime;
-			long notChargingThreshold = 60 * 1000; // 60 seconds
-			boolean isIdleForLong = idleDuration >= notChargingThreshold;
+			boolean isIdleForLong = idleDuration >= NOT_CHARGING_THRESHOLD;
 
 			// start the train if not charging and has been idle for a while
 			if (!state.getIsCharging() && isIdleForLong) {
@@ -537,6 +481,18 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 			return false;
 		}
+
+		@Override
+		long getCheckDelay() {
+			long remainingTime = NOT_CHARGING_THRESHOLD - (GatewayClock.now() - startTime);
+
+			// once idle for long enough only the charging stopping can complete it
+			if (remainingTime <= 0 && state.getIsCharging()) {
+				return NO_CHECK_NEEDED;
+			}
+
+			return Math.max(remainingTime, 0);
+		}
 	}
 
 	class TripCompleteTrainOperation extends TrainOperation {
@@ -567,16 +523,25 @@ public class TrainController extends AbstractController implements TrainStopEven
 
 	private com.stagnationlab.c8y.driver.fragments.controllers.Train state = new com.stagnationlab.c8y.driver.fragments.controllers.Train();
 	private final List<TrainOperation> operations = new ArrayList<>();
-	private final Map<Integer, TrainStop> stopMap = new HashMap<>();
+	private final String trainName;
+	private final TrainFleet fleet;
 	private Train train;
-	private Thread thread;
+	private ScheduledFuture<?> operationCheckTimeout;
 	private int currentOperationIndex = 0;
-	private long lastTicketActivationTime = 0;
-
-	private PortController ticketController;
 
-	public TrainController(String id, Map<String, Commander> commanders, Config config, EventBroker eventBroker) {
+	public TrainController(String id, String trainName, Map<String, Commander> commanders, Config config, EventBroker eventBroker, TrainFleet fleet) {
 		super(id, commanders, config, eventBroker);
+
+		this.trainName = trainName;
+		this.fleet = fleet;
+	}
+
+	public TrainController(String id, Map<String, Commander> commanders, Config config, EventBroker eventBroker, TrainFleet fleet) {
+		this(id, DEFAULT_TRAIN_NAME, commanders, config, eventBroker, fleet);
+	}
+
+	public String getTrainName() {
+		return trainName;
 	}
 
 	@Override
@@ -596,8 +561,9 @@ public class TrainController extends AbstractController implements TrainStopEven
 		setupTrain();
 		setupStartOperations();
 		setupStops();
-		setupTicketTerminal();
 		setupEndOperations();
+
+		fleet.registerTrain(this, config.getStringArray(getConfigKey("tagUidList")));
 	}
 
 	@Override
@@ -613,29 +579,20 @@ public class TrainController extends AbstractController implements TrainStopEven
 			public void onOpen(boolean isFirstConnect) {
 				log.debug("connection to train commander has been {}", isFirstConnect ? "established" : "re-established");
 
-				// only perform some operations on first connect
-				if (isFirstConnect) {
-					log.debug("initializing train stops");
-
-					for (int stopNumber : stopMap.keySet()) {
-						TrainStop stop = stopMap.get(stopNumber);
-
-						stop.initialize();
-					}
-				}
-
 				TrainOperation trainOperation = getCurrentOperation();
 
 				log.debug("starting post-connect train operation: {}", trainOperation.getName());
 
-				setIsRunning(true);
+				synchronized (TrainController.this) {
+					setIsRunning(true);
 
-				trainOperation.start();
+					trainOperation.start();
+				}
 
 				train.start();
 
-				thread = new Thread(TrainController.this, "TrainController");
-				thread.start();
+				// the operations are advanced by the stop, charging and timer events from now on
+				advance();
 
 				reportOperations();
 
@@ -648,19 +605,14 @@ public class TrainController extends AbstractController implements TrainStopEven
 			public void onClose(boolean isPlanned) {
 				log.info("train commander transport has been closed");
 
-				setIsRunning(false);
+				synchronized (TrainController.this) {
+					setIsRunning(false);
 
-				train.shutdown();
-
-				if (thread != null) {
-					try {
-						thread.join();
-						thread = null;
-					} catch (InterruptedException e) {
-						log.warn("waiting for train thread to join failed ({} - {})", e.getClass().getSimpleName(), e.getMessage(), e);
-					}
+					cancelOperationCheck();
 				}
 
+				train.shutdown();
+
 				log.debug("stopped train controller");
 
 				if (!isPlanned) {
@@ -695,46 +647,63 @@ public class TrainController extends AbstractController implements TrainStopEven
 	}
 
 	@Override
-	public void onTrainEnter(String stopName) {
+	public synchronized void onTrainEnter(String stopName) {
 		operations.forEach((trainOperation -> trainOperation.onTrainEnter(stopName)));
+
+		advance();
 	}
 
 	@Override
-	public void onTrainExit(String stopName) {
+	public synchronized void onTrainExit(String stopName) {
 		operations.forEach((trainOperation -> trainOperation.onTrainExit(stopName)));
-	}
 
-	@Override
-	public void run() {
-		log.info("starting train update thread");
+		advance();
+	}
 
-		long lastStepTime = Util.now();
+	/**
+	 * Moves on past all the completed operations and schedules checking the current one again when it can complete.
+	 *
+	 * Called on every event that may complete an operation so nothing needs to be polled.
+	 */
+	private synchronized void advance() {
+		if (!state.getIsRunning()) {
+			return;
+		}
 
-		while (state.getIsRunning()) {
-			long currentTime = Util.now();
-			long deltaTime = currentTime - lastStepTime;
+		while (getCurrentOperation().isComplete()) {
+			startNextOperation();
+		}
 
-			step(deltaTime);
+		cancelOperationCheck();
 
-			lastStepTime = currentTime;
+		TrainOperation currentOperation = getCurrentOperation();
+		long checkDelay = currentOperation.getCheckDelay();
 
-			//try {
-			//	Thread.sleep(16); // around 60 FPS
-			//} catch (InterruptedException e) {
-			//	log.debug("train thread was interrupted");
-			//}
+		if (checkDelay == NO_CHECK_NEEDED) {
+			return;
 		}
 
-		log.debug("stopped train update thread");
+		// the timer may fire a little early on a different clock, checking again reschedules it
+		operationCheckTimeout = Scheduler.INSTANCE.setTimeout("train " + currentOperation.getName(), this::advance, Math.max(checkDelay, 1));
 	}
 
-	private void step(long dt) {
-		operations.forEach((operation) -> operation.step(dt));
+	/**
+	 * Called by the fleet when a block of track this train was waiting for has been released.
+	 */
+	synchronized void onTrackReleased() {
+		if (!state.getIsRunning()) {
+			return;
+		}
 
-		TrainOperation currentOperation = getCurrentOperation();
+		getCurrentOperation().onTrackReleased();
 
-		if (currentOperation.isComplete()) {
-			startNextOperation();
+		advance();
+	}
+
+	private void cancelOperationCheck() {
+		if (operationCheckTimeout != null) {
+			operationCheckTimeout.cancel(false);
+			operationCheckTimeout = null;
 		}
 	}
 
@@ -766,96 +735,62 @@ public class TrainController extends AbstractController implements TrainStopEven
 	}
 
 	private void setupTrain() {
-		String commanderName = config.getString("train.commander");
+		String commanderName = config.getString(getConfigKey("commander"));
 		Commander commander = getCommanderByName(commanderName);
 
 		train = new Train(commander);
 	}
 
 	private void setupStops() {
-		int stopCount = config.getInt("train.stopCount");
-
-		log.debug("configuring {} stops", stopCount);
+		List<Integer> route = getRoute();
 
-		for (int i = 0; i < stopCount; i++) {
-			setupStop(i, stopCount);
-		}
-	}
+		log.debug("configuring route of {} stops for train '{}'", route.size(), trainName);
 
-	private void setupStop(int stopNumber, int stopCount) {
-		String commanderName = config.getString("train.stop." + stopNumber + ".commander");
-		int port = config.getInt("train.stop." + stopNumber + ".port");
-		int waitTime = config.getInt("train.stop." + stopNumber + ".waitTime");
-		String name = config.getString("train.stop." + stopNumber + ".name");
-		List<String> trainTagUidList = config.getStringArray("train.tagUidList");
+		for (int i = 0; i < route.size(); i++) {
+			TrainFleet.TrainStop trainStop = fleet.getStop(route.get(i));
+			boolean isFinalStop = i == route.size() - 1;
 
-		Commander commander = getCommanderByName(commanderName);
-		TrainStop trainStop = createStop(commander, port, name, trainTagUidList);
-
-		registerStop(stopNumber, trainStop);
-
-		boolean isFinalStop = stopNumber == stopCount - 1;
-
-		// stop at given station
-		registerOperation(
-				new DriveToStopTrainOperation(train, trainStop.getName(), isFinalStop)
-		);
-
-		// don't add the stop after the last station
-		if (!isFinalStop) {
+			// stop at given station
 			registerOperation(
-					new WaitTrainOperation(train, waitTime)
+					new DriveToStopTrainOperation(train, trainStop.getName(), isFinalStop)
 			);
+
+			// don't add the stop after the last station
+			if (!isFinalStop) {
+				registerOperation(
+						new WaitTrainOperation(train, trainStop.getWaitTime())
+				);
+			}
 		}
 	}
 
-	private void setupTicketTerminal() {
-		String commanderName = config.getString("train.ticket.commander");
-		int port = config.getInt("train.ticket.port");
-		List<String> tagUidList = config.getStringArray("train.ticket.tagUidList");
+	// stop numbers in the order the train visits them, all the stops by default
+	private List<Integer> getRoute() {
+		String routeKey = "train." + trainName + ".route";
+		List<Integer> route = new ArrayList<>();
 
-		log.debug("configuring ticket terminal on commander {} port {}", commanderName, port);
+		if (config.containsKey(routeKey)) {
+			for (String stopNumber : config.getStringArray(routeKey)) {
+				route.add(Integer.valueOf(stopNumber));
+			}
+		} else {
+			for (int stopNumber = 0; stopNumber < fleet.getStopCount(); stopNumber++) {
+				route.add(stopNumber);
+			}
+		}
 
-		Commander ticketCommander = getCommanderByName(commanderName);
-		ticketController = new PortController(port, ticketCommander);
+		return route;
+	}
 
-		ticketCommander.getMessageTransport().addEventListener(new MessageTransport.EventListener() {
-			@Override
-			public void onOpen(boolean isFirstConnect) {
-				log.debug("ticket commander transport was opened, enabling tag reader");
-
-				ticketController.sendPortCommand(TAG_READER_CAPABILITY, COMMAND_ENABLE)
-						.thenAccept(Gateway::handlePortCommandResponse);
-
-				if (isFirstConnect) {
-					ticketController.addEventListener(new PortController.PortEventListener() {
-						@Override
-						public void onPortCapabilityUpdate(int id, String capabilityName, List<String> arguments) {
-							if (!capabilityName.equals(TAG_READER_CAPABILITY)) {
-								return;
-							}
-
-							String type = arguments.get(0);
-
-							switch (type) {
-								case ACTION_UID: {
-									String action = arguments.get(1);
-									String uid = arguments.get(2);
-									//boolean isValidTag = tagUidList.contains(uid);
-									boolean isValidTag = true; // disabled checking tag - any tag will do
-
-									if (action.equals(ACTION_ENTER) && isValidTag) {
-										handleTrainTicketBought();
-									}
-
-									break;
-								}
-							}
-						}
-					});
-				}
-			}
-		});
+	// train specific configuration is optional, the shared train configuration is used otherwise
+	private String getConfigKey(String name) {
+		String trainKey = "train." + trainName + "." + name;
+
+		return config.containsKey(trainKey) ? trainKey : "train." + name;
+	}
+
+	private String getSpokenName() {
+		return trainName.equals(DEFAULT_TRAIN_NAME) ? "The train" : "The train " + trainName;
 	}
 
 	private void setupStartOperations() {
@@ -870,33 +805,41 @@ public class TrainController extends AbstractController implements TrainStopEven
 		);
 	}
 
-	private void handleTrainTicketBought() {
-		if (Util.since(lastTicketActivationTime) < MINIMUM_TICKET_BUYING_TIMEOUT) {
-			log.debug("requested buying ticket too soon, ignoring it");
-
-			return;
+	/**
+	 * Starts a new trip if the train is idle.
+	 *
+	 * @return whether the trip was started
+	 */
+	synchronized boolean startTripIfIdle() {
+		if (!(getCurrentOperation() instanceof IdleTrainOperation)) {
+			return false;
 		}
 
-		log.debug("train ticket was bought");
+		log.debug("train '{}' is currently idle, starting new loop", trainName);
 
-		TrainOperation currentOperation = getCurrentOperation();
+		TextToSpeech.INSTANCE.speak("Train ticket has been bought", true);
 
-		// decide what to do based on current train operation
-		if (currentOperation instanceof IdleTrainOperation) {
-			log.debug("train is currently idle, starting new loop");
+		state.incrementNumberOfTicketsBought();
 
-			TextToSpeech.INSTANCE.speak("Train ticket has been bought", true);
+		log.debug("incremented the number of tickets bought to {}", state.getNumberOfTicketsBought());
 
-			state.incrementNumberOfTicketsBought();
+		startNextOperation();
+		advance();
 
-			log.debug("incremented the number of tickets bought to {}", state.getNumberOfTicketsBought());
+		log.debug("reporting controller activated event");
 
-			startNextOperation();
+		reportEvent(new ControllerActivatedEvent());
 
-			log.debug("reporting controller activated event");
+		return true;
+	}
 
-			reportEvent(new ControllerActivatedEvent());
-		} else if (currentOperation instanceof DriveToStopTrainOperation) {
+	/**
+	 * Tells the passenger where the train is while it is not available for a new trip.
+	 */
+	synchronized void reportTripInProgress() {
+		TrainOperation currentOperation = getCurrentOperation();
+
+		if (currentOperation instanceof DriveToStopTrainOperation) {
 			String targetStopName =((DriveToStopTrainOperation) currentOperation).getTargetStopName();
 
 			log.debug("train is currently en route to {}, wait for it to arrive at central station and become idle", targetStopName);
@@ -919,22 +862,6 @@ public class TrainController extends AbstractController implements TrainStopEven
 				TextToSpeech.INSTANCE.speak("Please wait for the train to return to Central Station", true);
 			}
 		}
-
-		lastTicketActivationTime = Util.now();
-	}
-
-	private TrainStop createStop(Commander commander, int port, String name, List<String> trainTagUidList) {
-		PortController portController = new PortController(port, commander);
-
-		return new TrainStop(portController, name, trainTagUidList);
-	}
-
-	private void registerStop(int stopNumber, TrainStop trainStop) {
-		log.debug("registering train stop #{} '{}'", stopNumber, trainStop.name);
-
-		trainStop.addEventListener(this);
-
-		stopMap.put(stopNumber, trainStop);
 	}
 
 	private void registerOperation(TrainOperation operation) {
@@ -0,0 +1,311 @@
+package com.stagnationlab.c8y.driver.controllers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.stagnationlab.c8y.driver.Gateway;
+import com.stagnationlab.c8y.driver.services.Config;
+import com.stagnationlab.c8y.driver.services.GatewayClock;
+import com.stagnationlab.c8y.driver.services.Scheduler;
+import com.stagnationlab.etherio.Commander;
+import com.stagnationlab.etherio.MessageTransport;
+import com.stagnationlab.etherio.PortController;
+
+/**
+ * Shared track model of all the trains.
+ *
+ * The stops and the ticket terminal are set up once for the whole fleet, tag events of a stop are routed only to the
+ * train the tag belongs to. The track is split into blocks leading to each stop and a train must reserve the block of
+ * its next stop before departing so two trains never share a segment, the trains waiting for a block are woken up on
+ * the shared scheduler when it is released.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public class TrainFleet {
+
+	private static final String TAG_READER_CAPABILITY = "PN532";
+	private static final String COMMAND_ENABLE = "enable";
+	private static final String ACTION_ENTER = "enter";
+	private static final String ACTION_EXIT = "exit";
+	private static final String ACTION_UID = "uid";
+	private static final long MINIMUM_TICKET_BUYING_TIMEOUT = 5000;
+
+	class TrainStop {
+		private final PortController portController;
+		private final String name;
+		private final int waitTime;
+
+		TrainStop(PortController portController, String name, int waitTime) {
+			this.portController = portController;
+			this.name = name;
+			this.waitTime = waitTime;
+		}
+
+		void initialize() {
+			portController.getCommander().getMessageTransport().addEventListener(new MessageTransport.EventListener() {
+
+				@Override
+				public void onOpen(boolean isFirstConnect) {
+					if (isFirstConnect) {
+						setupEventListeners();
+					}
+
+					startTagListener();
+				}
+			});
+		}
+
+		private void setupEventListeners() {
+			portController.addEventListener(new PortController.PortEventListener() {
+				@Override
+				public void onPortCapabilityUpdate(int id, String capabilityName, List<String> arguments) {
+					if (!capabilityName.equals(TAG_READER_CAPABILITY)) {
+						return;
+					}
+
+					String type = arguments.get(0);
+
+					switch (type) {
+						case ACTION_UID: {
+							String action = arguments.get(1);
+							String uid = arguments.get(2);
+
+							handleTagEvent(action, uid);
+							break;
+						}
+					}
+				}
+			});
+		}
+
+		private void startTagListener() {
+			// request the NFC capability on transport open
+			portController.sendPortCommand(TAG_READER_CAPABILITY, COMMAND_ENABLE)
+				.thenAccept(Gateway::handlePortCommandResponse);
+		}
+
+		private void handleTagEvent(String action, String uid) {
+			log.debug("got tag '{}' for '{}' at '{}'", action, uid, name);
+
+			TrainStopEventListener train = trainsByTagUid.get(uid);
+
+			if (train == null) {
+				return;
+			}
+
+			switch (action) {
+				case ACTION_ENTER:
+					train.onTrainEnter(name);
+					break;
+
+				case ACTION_EXIT:
+					train.onTrainExit(name);
+					break;
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getWaitTime() {
+			return waitTime;
+		}
+	}
+
+	private final Map<String, Commander> commanders;
+	private final Config config;
+	private final List<TrainStop> stops = new ArrayList<>();
+	private final Map<String, TrainStopEventListener> trainsByTagUid = new ConcurrentHashMap<>();
+	private final List<TrainController> trains = new CopyOnWriteArrayList<>();
+	private final Map<String, TrainController> blockOwners = new HashMap<>();
+	private final Map<TrainController, String> reservedBlocks = new HashMap<>();
+	private final Map<String, Set<TrainController>> blockWaiters = new HashMap<>();
+	private long lastTicketActivationTime = 0;
+
+	public TrainFleet(Map<String, Commander> commanders, Config config) {
+		this.commanders = commanders;
+		this.config = config;
+	}
+
+	public void setup() {
+		log.info("setting up train fleet");
+
+		setupStops();
+		setupTicketTerminal();
+	}
+
+	void registerTrain(TrainController train, List<String> tagUidList) {
+		log.debug("registering train '{}' with {} tags", train.getTrainName(), tagUidList.size());
+
+		for (String tagUid : tagUidList) {
+			TrainStopEventListener previousTrain = trainsByTagUid.put(tagUid, train);
+
+			if (previousTrain != null && previousTrain != train) {
+				log.warn("tag '{}' is configured for several trains, using it for '{}'", tagUid, train.getTrainName());
+			}
+		}
+
+		trains.add(train);
+	}
+
+	int getStopCount() {
+		return stops.size();
+	}
+
+	TrainStop getStop(int stopNumber) {
+		return stops.get(stopNumber);
+	}
+
+	/**
+	 * Reserves the block of track leading to given stop, releasing the block the train held before.
+	 *
+	 * When the block is held by another train the requesting train is notified once it is released.
+	 *
+	 * @param train train to reserve the block for
+	 * @param stopName name of the stop the block leads to
+	 * @return whether the block was reserved
+	 */
+	synchronized boolean reserveBlock(TrainController train, String stopName) {
+		TrainController owner = blockOwners.get(stopName);
+
+		if (owner != null && owner != train) {
+			log.debug("block to '{}' is held by train '{}', train '{}' has to wait", stopName, owner.getTrainName(), train.getTrainName());
+
+			blockWaiters.computeIfAbsent(stopName, key -> new LinkedHashSet<>()).add(train);
+
+			return false;
+		}
+
+		String previousStopName = reservedBlocks.put(train, stopName);
+
+		blockOwners.put(stopName, train);
+
+		if (previousStopName != null && !previousStopName.equals(stopName)) {
+			releaseBlock(previousStopName);
+		}
+
+		return true;
+	}
+
+	private void releaseBlock(String stopName) {
+		blockOwners.remove(stopName);
+
+		Set<TrainController> waiters = blockWaiters.remove(stopName);
+
+		if (waiters == null) {
+			return;
+		}
+
+		// notify on the scheduler so the waiting trains never lock each other
+		for (TrainController waiter : waiters) {
+			Scheduler.INSTANCE.setTimeout("train " + waiter.getTrainName() + " track released", waiter::onTrackReleased, 0);
+		}
+	}
+
+	private void setupStops() {
+		int stopCount = config.getInt("train.stopCount");
+
+		log.debug("configuring {} stops", stopCount);
+
+		for (int stopNumber = 0; stopNumber < stopCount; stopNumber++) {
+			String commanderName = config.getString("train.stop." + stopNumber + ".commander");
+			int port = config.getInt("train.stop." + stopNumber + ".port");
+			int waitTime = config.getInt("train.stop." + stopNumber + ".waitTime");
+			String name = config.getString("train.stop." + stopNumber + ".name");
+
+			log.debug("registering train stop #{} '{}'", stopNumber, name);
+
+			TrainStop trainStop = new TrainStop(new PortController(port, commanders.get(commanderName)), name, waitTime);
+
+			trainStop.initialize();
+
+			stops.add(trainStop);
+		}
+	}
+
+	private void setupTicketTerminal() {
+		String commanderName = config.getString("train.ticket.commander");
+		int port = config.getInt("train.ticket.port");
+
+		log.debug("configuring ticket terminal on commander {} port {}", commanderName, port);
+
+		Commander ticketCommander = commanders.get(commanderName);
+		PortController ticketController = new PortController(port, ticketCommander);
+
+		ticketCommander.getMessageTransport().addEventListener(new MessageTransport.EventListener() {
+			@Override
+			public void onOpen(boolean isFirstConnect) {
+				log.debug("ticket commander transport was opened, enabling tag reader");
+
+				ticketController.sendPortCommand(TAG_READER_CAPABILITY, COMMAND_ENABLE)
+						.thenAccept(Gateway::handlePortCommandResponse);
+
+				if (isFirstConnect) {
+					ticketController.addEventListener(new PortController.PortEventListener() {
+						@Override
+						public void onPortCapabilityUpdate(int id, String capabilityName, List<String> arguments) {
+							if (!capabilityName.equals(TAG_READER_CAPABILITY)) {
+								return;
+							}
+
+							String type = arguments.get(0);
+
+							switch (type) {
+								case ACTION_UID: {
+									String action = arguments.get(1);
+
+									// any tag will do as a ticket
+									if (action.equals(ACTION_ENTER)) {
+										handleTrainTicketBought();
+									}
+
+									break;
+								}
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void handleTrainTicketBought() {
+		if (!acceptTicket()) {
+			log.debug("requested buying ticket too soon, ignoring it");
+
+			return;
+		}
+
+		log.debug("train ticket was bought");
+
+		// the first idle train takes the trip, the fleet lock is not held as the trains reserve blocks
+		for (TrainController train : trains) {
+			if (train.startTripIfIdle()) {
+				return;
+			}
+		}
+
+		if (trains.size() > 0) {
+			trains.get(0).reportTripInProgress();
+		}
+	}
+
+	private synchronized boolean acceptTicket() {
+		if (GatewayClock.since(lastTicketActivationTime) < MINIMUM_TICKET_BUYING_TIMEOUT) {
+			return false;
+		}
+
+		lastTicketActivationTime = GatewayClock.now();
+
+		return true;
+	}
+}
@@ -0,0 +1,6 @@
+package com.stagnationlab.c8y.driver.controllers;
+
+interface TrainStopEventListener {
+	void onTrainEnter(String stopName);
+	void onTrainExit(String stopName);
+}
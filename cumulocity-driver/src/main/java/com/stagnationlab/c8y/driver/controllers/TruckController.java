@@ -18,6 +18,7 @@ import com.stagnationlab.c8y.driver.measurements.GridPowerBalanceMeasurement;
 import com.stagnationlab.c8y.driver.services.BatteryMonitor;
 import com.stagnationlab.c8y.driver.services.Config;
 import com.stagnationlab.c8y.driver.services.EventBroker;
+import com.stagnationlab.c8y.driver.services.GatewayClock;
 import com.stagnationlab.c8y.driver.services.Scheduler;
 import com.stagnationlab.c8y.driver.services.SimulatedVariance;
 import com.stagnationlab.c8y.driver.services.TextToSpeech;
@@ -121,7 +122,7 @@ public class TruckController extends AbstractController {
 
 		Commander solarCommander = getCommanderByName(commanderName);
 
-		solarPanelSensor = new EtherioAnalogInputSensor(
+		EtherioAnalogInputSensor solarPanelSensor = new EtherioAnalogInputSensor(
 				"Truck solar panel",
 				solarCommander,
 				port,
@@ -131,9 +132,13 @@ public class TruckController extends AbstractController {
 				changeThreshold
 		);
 
+		// the grid power balance of a charging truck changes sign around the base charge power
+		solarPanelSensor.setEdgeThresholds(truckBaseChargePower);
 		solarPanelSensor.addListener(this::onSolarPanelOutputChange);
 
 		registerChild(solarPanelSensor);
+
+		this.solarPanelSensor = solarPanelSensor;
 	}
 
 	@Override
@@ -266,7 +271,7 @@ public class TruckController extends AbstractController {
 		// simulate periodic change of charging power
 		clearChargeInterval();
 
-		chargePowerInterval = Scheduler.setInterval(this::updateGridPower, CHARGE_POWER_INTERVAL_MS);
+		chargePowerInterval = Scheduler.INSTANCE.setInterval("truck charge power", this::updateGridPower, CHARGE_POWER_INTERVAL_MS);
 	}
 
 	private void handleTruckStoppedCharging() {
@@ -344,7 +349,7 @@ public class TruckController extends AbstractController {
 	}
 
 	private void sendControlledActivatedEventIfNew() {
-		long timeSinceLastActivationReport = Util.since(lastActivationReportedTime);
+		long timeSinceLastActivationReport = GatewayClock.since(lastActivationReportedTime);
 
 		if (timeSinceLastActivationReport < CONTROLLER_ACTIVATION_MIN_PAUSE) {
 			log.debug("new activation requested too soon ({}ms since last time), ignoring it", timeSinceLastActivationReport);
@@ -356,6 +361,6 @@ public class TruckController extends AbstractController {
 
 		reportEvent(new ControllerActivatedEvent());
 
-		lastActivationReportedTime = Util.now();
+		lastActivationReportedTime = GatewayClock.now();
 	}
 }
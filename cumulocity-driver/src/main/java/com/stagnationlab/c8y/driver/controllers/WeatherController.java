@@ -1,6 +1,7 @@
 package com.stagnationlab.c8y.driver.controllers;
 
 import java.text.DecimalFormat;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -15,6 +16,7 @@ import com.stagnationlab.c8y.driver.measurements.LightMeasurement;
 import com.stagnationlab.c8y.driver.measurements.PressureMeasurement;
 import com.stagnationlab.c8y.driver.measurements.SoundMeasurement;
 import com.stagnationlab.c8y.driver.measurements.TemperatureMeasurement;
+import com.stagnationlab.c8y.driver.services.ConflatingQueue;
 import com.stagnationlab.c8y.driver.services.Config;
 import com.stagnationlab.c8y.driver.services.EventBroker;
 import com.stagnationlab.c8y.driver.services.TextToSpeech;
@@ -29,6 +31,7 @@ public class WeatherController extends AbstractController {
 	private Commander commander;
 	private PortController portController;
 	private boolean isConnected = false;
+	private final Map<String, ConflatingQueue.Stream> sensorStreams = new HashMap<>();
 
 	private static final String WEATHER_STATION_CAPABILITY = "weather-station";
 	private static final String WEATHER_EVENT_CLAP = "clap";
@@ -57,6 +60,8 @@ public class WeatherController extends AbstractController {
 
 		commander = getCommanderByName(commanderName);
 		portController = new PortController(port, commander);
+
+		setupSensorStreams(port);
 	}
 
 	@Override
@@ -107,6 +112,23 @@ public class WeatherController extends AbstractController {
 		super.shutdown();
 	}
 
+	private void setupSensorStreams(int port) {
+		// the lighting controller switches the lights on and off when the light level crosses these, never conflated
+		ConflatingQueue.EdgeDetector lightmeterEdgeDetector = ConflatingQueue.thresholdCrossing(
+				LightingController.getLightLevelEdgeThresholds(config)
+		);
+
+		addSensorStream(port, WeatherSensor.THERMOMETER, ConflatingQueue.NO_EDGES, this::handleThermometerUpdate);
+		addSensorStream(port, WeatherSensor.LIGHTMETER, lightmeterEdgeDetector, this::handleLightmeterUpdate);
+		addSensorStream(port, WeatherSensor.HYGROMETER, ConflatingQueue.NO_EDGES, this::handleHygrometerUpdate);
+		addSensorStream(port, WeatherSensor.BAROMETER, ConflatingQueue.NO_EDGES, this::handleBarometerUpdate);
+		addSensorStream(port, WeatherSensor.SOUNDMETER, ConflatingQueue.NO_EDGES, this::handleSoundmeterUpdate);
+	}
+
+	private void addSensorStream(int port, String sensor, ConflatingQueue.EdgeDetector edgeDetector, ConflatingQueue.ValueHandler handler) {
+		sensorStreams.put(sensor, ConflatingQueue.INSTANCE.createStream(ConflatingQueue.buildKey(commander, port, sensor), edgeDetector, handler));
+	}
+
 	private void addEventListeners() {
 		log.debug("setting up weather event listener");
 
@@ -119,30 +141,17 @@ public class WeatherController extends AbstractController {
 
 				String sensor = arguments.get(0);
 
-				switch (sensor) {
-					case WeatherSensor.THERMOMETER:
-						handleThermometerUpdate(Float.valueOf(arguments.get(1)));
-						break;
+				// claps are events rather than values so they are never conflated
+				if (sensor.equals(WEATHER_EVENT_CLAP)) {
+					handleClapEvent(Integer.valueOf(arguments.get(1)), Float.valueOf(arguments.get(2)));
 
-					case WeatherSensor.LIGHTMETER:
-						handleLightmeterUpdate(Float.valueOf(arguments.get(1)));
-						break;
-
-					case WeatherSensor.HYGROMETER:
-						handleHygrometerUpdate(Float.valueOf(arguments.get(1)));
-						break;
-
-					case WeatherSensor.BAROMETER:
-						handleBarometerUpdate(Float.valueOf(arguments.get(1)));
-						break;
+					return;
+				}
 
-					case WeatherSensor.SOUNDMETER:
-						handleSoundmeterUpdate(Float.valueOf(arguments.get(1)));
-						break;
+				ConflatingQueue.Stream sensorStream = sensorStreams.get(sensor);
 
-					case WEATHER_EVENT_CLAP:
-						handleClapEvent(Integer.valueOf(arguments.get(1)), Float.valueOf(arguments.get(2)));
-						break;
+				if (sensorStream != null) {
+					sensorStream.submit(Float.valueOf(arguments.get(1)));
 				}
 			}
 		});
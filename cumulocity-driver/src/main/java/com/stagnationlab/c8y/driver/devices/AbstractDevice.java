@@ -4,10 +4,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import lombok.extern.slf4j.Slf4j;
 
 import com.cumulocity.model.idtype.GId;
+import com.cumulocity.model.util.ExtensibilityConverter;
 import com.cumulocity.rest.representation.event.EventRepresentation;
 import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
 import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
@@ -16,6 +22,9 @@ import com.cumulocity.sdk.client.event.EventApi;
 import com.cumulocity.sdk.client.inventory.InventoryApi;
 import com.cumulocity.sdk.client.measurement.MeasurementApi;
 import com.stagnationlab.c8y.driver.services.DeviceManager;
+import com.stagnationlab.c8y.driver.services.InventoryUpdater;
+import com.stagnationlab.c8y.driver.services.MeasurementPipeline;
+import com.stagnationlab.c8y.driver.services.Spool;
 import com.stagnationlab.c8y.driver.services.Util;
 
 import c8y.Hardware;
@@ -48,6 +57,9 @@ public abstract class AbstractDevice implements Driver {
     protected final String id;
     protected boolean isApiReady = false;
 
+    // serialized form of the fragments as last requested to be sent, unchanged fragments are not sent again
+    private final Map<String, String> requestedFragments = new ConcurrentHashMap<>();
+
     protected AbstractDevice(String id) {
         this.id = id;
 
@@ -133,6 +145,65 @@ public abstract class AbstractDevice implements Driver {
 
 	@Override
 	public void discoverChildren(ManagedObjectRepresentation parent) {
+		// run in the calling thread, one device after another
+		try {
+			discoverChildren(parent, Runnable::run).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Discovers this device and then its children, the subtrees of the children are discovered concurrently.
+	 *
+	 * @param parent parent managed object
+	 * @param executor executor to run the discovery of each device on
+	 * @return future completed once the whole subtree has been discovered
+	 */
+	public CompletableFuture<Void> discoverChildren(ManagedObjectRepresentation parent, Executor executor) {
+		// the device must exist before its children can be linked to it
+		return CompletableFuture.runAsync(() -> discoverDevice(parent), executor).thenCompose(ignored -> {
+			CompletableFuture<?>[] childDiscoveries = new CompletableFuture<?>[children.size()];
+
+			for (int i = 0; i < children.size(); i++) {
+				childDiscoveries[i] = discoverChild(children.get(i), executor);
+			}
+
+			return CompletableFuture.allOf(childDiscoveries);
+		});
+	}
+
+	private CompletableFuture<Void> discoverChild(Driver child, Executor executor) {
+		if (child instanceof AbstractDevice) {
+			return ((AbstractDevice)child).discoverChildren(device, executor);
+		}
+
+		return CompletableFuture.runAsync(() -> {
+			try {
+				child.discoverChildren(device);
+			} catch (Exception e) {
+				debugDriverException(child, e, "discovering children failed");
+
+				throw e;
+			}
+		}, executor);
+	}
+
+	private void discoverDevice(ManagedObjectRepresentation parent) {
+		try {
+			createOrUpdateDevice(parent);
+		} catch (Exception e) {
+			debugDriverException(this, e, "discovering children failed");
+
+			throw e;
+		}
+	}
+
+	private void createOrUpdateDevice(ManagedObjectRepresentation parent) {
 		parentId = parent.getId();
 
 		log.debug("discovering '{}' children for parent with id {}", id, parentId.getValue());
@@ -152,16 +223,6 @@ public abstract class AbstractDevice implements Driver {
 
 		log.debug("created device for '{}' with id: {}", id, myId.getValue());
 		debugManagedObject(device);
-
-		for (Driver child : children) {
-			try {
-				child.discoverChildren(device);
-			} catch (Exception e) {
-				debugDriverException(child, e, "discovering children failed");
-
-				throw e;
-			}
-		}
 	}
 
 	@Override
@@ -243,12 +304,17 @@ public abstract class AbstractDevice implements Driver {
 
         MeasurementRepresentation measurementRepresentation = new MeasurementRepresentation();
 
-        measurementRepresentation.setSource(device);
+        measurementRepresentation.setSource(getSourceReference());
         measurementRepresentation.setType(type);
         measurementRepresentation.set(measurement);
         measurementRepresentation.setTime(new Date());
 
-        measurementApi.create(measurementRepresentation);
+        // measurements are uploaded in batches in the background once the gateway has started the pipeline
+        if (MeasurementPipeline.INSTANCE.isRunning()) {
+            MeasurementPipeline.INSTANCE.add(measurementRepresentation);
+        } else {
+            measurementApi.create(measurementRepresentation);
+        }
 
         return measurementRepresentation;
     }
@@ -261,31 +327,105 @@ public abstract class AbstractDevice implements Driver {
     protected void reportEvent(EventRepresentation eventRepresentation) {
         log.trace("reporting event for '{}' of type {}: {}", id, eventRepresentation.getClass().getSimpleName(), Util.stringify(eventRepresentation));
 
-        eventRepresentation.setSource(device);
+        eventRepresentation.setSource(getSourceReference());
+
+        // while older events are still spooled the new ones are queued behind them
+        if (Spool.INSTANCE.hasBacklog() && Spool.INSTANCE.append(Spool.RecordType.EVENT, eventRepresentation)) {
+            return;
+        }
+
+        try {
+            eventApi.create(eventRepresentation);
+        } catch (RuntimeException e) {
+            // an event the platform rejected would be rejected again so only spool the ones that may pass later
+            if (!Spool.isRetriable(e) || !Spool.INSTANCE.append(Spool.RecordType.EVENT, eventRepresentation)) {
+                throw e;
+            }
+
+            log.warn("reporting event for '{}' failed, spooled it ({} - {})", id, e.getClass().getSimpleName(), e.getMessage());
+        }
+    }
+
+    // only the id of the source is sent with measurements and events instead of the whole device
+    private ManagedObjectRepresentation getSourceReference() {
+        if (device == null) {
+            return null;
+        }
+
+        ManagedObjectRepresentation sourceReference = new ManagedObjectRepresentation();
+        sourceReference.setId(device.getId());
 
-        eventApi.create(eventRepresentation);
+        return sourceReference;
     }
 
     @SuppressWarnings("UnusedReturnValue")
     protected ManagedObjectRepresentation updateState(Object... properties) {
         ManagedObjectRepresentation managedObjectRepresentation = new ManagedObjectRepresentation();
+        List<Object> changedProperties = new ArrayList<>(properties.length);
 
         for (Object property : properties) {
             managedObjectRepresentation.set(property);
+
+            if (isFragmentChanged(property)) {
+                changedProperties.add(property);
+            }
         }
 
 	    if (device == null || inventoryApi == null) {
 		    log.warn("updating state of '{}' requested but initialize with platform is not yet called, APIs not available yet", id);
+	    } else if (changedProperties.isEmpty()) {
+		    log.trace("state of '{}' has not changed, skipping update", id);
 	    } else {
-		    log.trace("updating state of '{}': {}", id, Util.stringify(properties));
+		    log.trace("updating state of '{}': {}", id, Util.stringify(changedProperties));
 
 		    managedObjectRepresentation.setId(device.getId());
-		    device = inventoryApi.update(managedObjectRepresentation);
+
+		    // recorded before the update is sent so the same state requested again while it is pending is not queued
+		    for (Object property : changedProperties) {
+			    requestedFragments.put(ExtensibilityConverter.classToStringRepresentation(property.getClass()), Util.stringify(property));
+		    }
+
+		    // successive updates are merged and sent in the background once the gateway has started the updater
+		    if (InventoryUpdater.INSTANCE.isRunning()) {
+			    InventoryUpdater.INSTANCE.update(device.getId(), changedProperties.toArray(), this::handleStateUpdated, this::handleStateUpdateFailed);
+		    } else {
+			    ManagedObjectRepresentation changedRepresentation = new ManagedObjectRepresentation();
+			    changedRepresentation.setId(device.getId());
+
+			    for (Object property : changedProperties) {
+				    changedRepresentation.set(property);
+			    }
+
+			    try {
+				    handleStateUpdated(inventoryApi.update(changedRepresentation));
+			    } catch (RuntimeException e) {
+				    handleStateUpdateFailed(e);
+
+				    throw e;
+			    }
+		    }
 	    }
 
         return managedObjectRepresentation;
     }
 
+    private boolean isFragmentChanged(Object property) {
+	    String fragmentName = ExtensibilityConverter.classToStringRepresentation(property.getClass());
+
+	    return !Util.stringify(property).equals(requestedFragments.get(fragmentName));
+    }
+
+    private void handleStateUpdated(ManagedObjectRepresentation updatedDevice) {
+	    device = updatedDevice;
+    }
+
+    // the inventory may not have any of the requested fragments so the next update sends them all again
+    private void handleStateUpdateFailed(Exception e) {
+	    log.debug("updating state of '{}' failed, sending all fragments with the next update ({} - {})", id, e.getClass().getSimpleName(), e.getMessage());
+
+	    requestedFragments.clear();
+    }
+
 	protected void debugManagedObject(ManagedObjectRepresentation o) {
 		log.debug("  > id: {}, type: {}, name: {}", o.getId() == null ? "n/a" : o.getId().getValue(), o.getType(), o.getName());
 	}
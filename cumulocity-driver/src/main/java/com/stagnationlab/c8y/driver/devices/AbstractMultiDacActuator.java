@@ -1,6 +1,7 @@
 package com.stagnationlab.c8y.driver.devices;
 
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -8,20 +9,48 @@ import com.cumulocity.model.operation.OperationStatus;
 import com.cumulocity.rest.representation.operation.OperationRepresentation;
 import com.stagnationlab.c8y.driver.fragments.actuators.MultiDacActuator;
 import com.stagnationlab.c8y.driver.operations.SetChannelValue;
+import com.stagnationlab.c8y.driver.services.Scheduler;
 import com.stagnationlab.c8y.driver.services.Util;
 
 import c8y.lx.driver.OperationExecutor;
 
+/**
+ * Multi channel DAC actuator that only sends the channels that have changed.
+ *
+ * The last value acknowledged by the driver is kept for each channel, the changes are collected for a short coalesce
+ * window and sent as a single frame with at most one frame in flight at a time.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
 @Slf4j
 public abstract class AbstractMultiDacActuator extends AbstractDevice {
 
+	public static final long DEFAULT_COALESCE_WINDOW = 20;
+
 	protected final MultiDacActuator state;
 
+	private final float[] desiredValues;
+	private final float[] acknowledgedValues;
+	private final int[] frameChannels;
+	private final float[] frameValues;
+	private long coalesceWindow = DEFAULT_COALESCE_WINDOW;
+	private boolean isFlushScheduled = false;
+	private boolean isFrameInFlight = false;
+	private long sentFrameCount = 0;
+	private long sentChannelCount = 0;
+
 	protected AbstractMultiDacActuator(String id, int channelCount) {
 		super(id);
 
 		state = new MultiDacActuator();
 		state.setChannelCount(channelCount);
+
+		desiredValues = new float[channelCount];
+		acknowledgedValues = new float[channelCount];
+		frameChannels = new int[channelCount];
+		frameValues = new float[channelCount];
+
+		// nothing is known about the driver state until the first frame is acknowledged
+		Arrays.fill(acknowledgedValues, Float.NaN);
 	}
 
 	@Override
@@ -89,35 +118,168 @@ public abstract class AbstractMultiDacActuator extends AbstractDevice {
 	}
 	*/
 
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
 	public void setChannelValue(int channel, float value) {
 		log.trace("setting channel {} value to {}", channel, value);
 
-		applyChannelValue(channel, value);
+		synchronized (this) {
+			if (!updateDesiredValue(channel, value)) {
+				return;
+			}
+
+			scheduleFlush();
+		}
 
-		state.updateChannelValue(channel, value);
 		updateState(state);
 	}
 
-	public void setChannelValues(Map<Integer, Float> values) {
-		log.trace("setting multiple channel values");
+	/**
+	 * Sets the values of several channels at once, the arrays are not retained so they can be reused by the caller.
+	 *
+	 * Only the channels whose value differs from what the driver has acknowledged are sent, the changes requested within
+	 * the coalesce window are combined into a single frame.
+	 *
+	 * @param channels channel indexes
+	 * @param values values of the channels
+	 * @param count number of channels to set from the beginning of the arrays
+	 */
+	public void setChannelValues(int[] channels, float[] values, int count) {
+		log.trace("setting {} channel values", count);
+
+		boolean wasChanged = false;
+
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				wasChanged |= updateDesiredValue(channels[i], values[i]);
+			}
+
+			if (!wasChanged) {
+				return;
+			}
+
+			scheduleFlush();
+		}
+
+		updateState(state);
+	}
+
+	/**
+	 * Forgets the acknowledged values so all the channels are sent again, to be called when the driver may have been
+	 * reset, for example after reconnecting.
+	 */
+	protected synchronized void invalidateAcknowledgedValues() {
+		Arrays.fill(acknowledgedValues, Float.NaN);
+
+		scheduleFlush();
+	}
+
+	// last requested value of given channel
+	protected synchronized float getDesiredValue(int channel) {
+		return desiredValues[channel];
+	}
+
+	// whether a frame is waiting to be sent or acknowledged
+	public synchronized boolean isBusy() {
+		return isFlushScheduled || isFrameInFlight;
+	}
+
+	public long getSentFrameCount() {
+		return sentFrameCount;
+	}
+
+	public long getSentChannelCount() {
+		return sentChannelCount;
+	}
 
-		for (Map.Entry<Integer, Float> channelValuePair : values.entrySet()) {
-			int channel = channelValuePair.getKey();
-			float value = channelValuePair.getValue();
+	protected abstract CompletableFuture<Boolean> applyChannelValue(int channel, float value);
+	protected abstract CompletableFuture<Boolean> applyChannelValues(int[] channels, float[] values, int count);
 
-			log.trace("- {}: {}", channel, value);
+	// returns whether the value differs from the requested one
+	private boolean updateDesiredValue(int channel, float value) {
+		if (channel < 0 || channel >= desiredValues.length) {
+			log.warn("setting channel {} of multi-dac actuator '{}' failed, it only has {} channels", channel, id, desiredValues.length);
 
-			state.updateChannelValue(channel, value);
+			return false;
 		}
 
-		applyChannelValues(values);
+		if (desiredValues[channel] == value) {
+			return false;
+		}
 
-		updateState(state);
+		desiredValues[channel] = value;
+		state.updateChannelValue(channel, value);
+
+		return true;
+	}
+
+	private synchronized void scheduleFlush() {
+		// a frame in flight flushes the changes made in the mean time once acknowledged
+		if (isFlushScheduled || isFrameInFlight) {
+			return;
+		}
+
+		isFlushScheduled = true;
+
+		Scheduler.INSTANCE.setTimeout("multi-dac actuator " + id + " flush", this::flush, coalesceWindow);
+	}
+
+	private synchronized void flush() {
+		isFlushScheduled = false;
+
+		int changedCount = 0;
+
+		for (int channel = 0; channel < desiredValues.length; channel++) {
+			// written this way so the unknown NaN values always count as changed
+			if (!(acknowledgedValues[channel] == desiredValues[channel])) {
+				frameChannels[changedCount] = channel;
+				frameValues[changedCount] = desiredValues[channel];
+				changedCount++;
+			}
+		}
+
+		if (changedCount == 0) {
+			return;
+		}
+
+		log.trace("sending {} changed channels of multi-dac actuator '{}'", changedCount, id);
+
+		int frameChannelCount = changedCount;
+		CompletableFuture<Boolean> acknowledgement = frameChannelCount == 1
+				? applyChannelValue(frameChannels[0], frameValues[0])
+				: applyChannelValues(frameChannels, frameValues, frameChannelCount);
+
+		isFrameInFlight = true;
+		sentFrameCount++;
+		sentChannelCount += frameChannelCount;
+
+		acknowledgement.whenComplete((isAcknowledged, e) -> handleAcknowledgement(frameChannelCount, isAcknowledged != null && isAcknowledged));
 	}
 
-	protected abstract void applyChannelValue(int channel, float value);
-	protected abstract void applyChannelValues(Map<Integer, Float> values);
+	private synchronized void handleAcknowledgement(int frameChannelCount, boolean isAcknowledged) {
+		isFrameInFlight = false;
 
+		// a failed frame is only retried with the next change
+		if (!isAcknowledged) {
+			log.debug("multi-dac actuator '{}' did not acknowledge {} channel values", id, frameChannelCount);
 
+			return;
+		}
+
+		// the frame buffers are not touched while a frame is in flight
+		for (int i = 0; i < frameChannelCount; i++) {
+			acknowledgedValues[frameChannels[i]] = frameValues[i];
+		}
+
+		// send what has changed in the mean time
+		for (int channel = 0; channel < desiredValues.length; channel++) {
+			if (!(acknowledgedValues[channel] == desiredValues[channel])) {
+				scheduleFlush();
 
+				return;
+			}
+		}
+	}
 }
@@ -6,7 +6,9 @@ import lombok.extern.slf4j.Slf4j;
 
 import com.stagnationlab.c8y.driver.Gateway;
 import com.stagnationlab.c8y.driver.devices.AbstractAnalogInputSensor;
+import com.stagnationlab.c8y.driver.services.ConflatingQueue;
 import com.stagnationlab.c8y.driver.services.Scheduler;
+import com.stagnationlab.etherio.CommandBatch;
 import com.stagnationlab.etherio.Commander;
 import com.stagnationlab.etherio.MessageTransport;
 import com.stagnationlab.etherio.PortController;
@@ -18,6 +20,8 @@ public class EtherioAnalogInputSensor extends AbstractAnalogInputSensor {
 	private final int portNumber;
 	private PortController portController;
 	private ScheduledFuture<?> pollerInterval;
+	private ConflatingQueue.Stream valueStream;
+	private volatile ConflatingQueue.EdgeDetector edgeDetector = ConflatingQueue.NO_EDGES;
 	private final int minInterval;
 	private final int pollInterval;
 	private final float changeThreshold;
@@ -49,6 +53,21 @@ public class EtherioAnalogInputSensor extends AbstractAnalogInputSensor {
 		super.initialize();
 
 		portController = new PortController(portNumber, commander);
+		valueStream = ConflatingQueue.INSTANCE.createStream(
+				ConflatingQueue.buildKey(commander, portNumber, "analog"),
+				(previousValue, value) -> edgeDetector.isEdge(previousValue, value),
+				this::handleValueChange
+		);
+	}
+
+	/**
+	 * Sets the values whose crossing is always reported, the values in between may be skipped when they change faster
+	 * than they are handled.
+	 *
+	 * @param thresholds transformed values of the thresholds
+	 */
+	public void setEdgeThresholds(float... thresholds) {
+		edgeDetector = ConflatingQueue.thresholdCrossing(thresholds);
 	}
 
 	@Override
@@ -67,25 +86,31 @@ public class EtherioAnalogInputSensor extends AbstractAnalogInputSensor {
 					portController.addEventListener(new PortController.PortEventListener() {
 						@Override
 						public void onPortAnalogValueChange(int id, float value) {
-							handleValueChange(getTransformedValue(value));
+							valueStream.submit(getTransformedValue(value));
 						}
 					});
 				}
 
-				// use analog input
-				portController.setPortMode(PortController.PortMode.ANALOG_IN).thenAccept(commandResponse -> {
+				// use analog input and listen for changes, sent in a single frame
+				CommandBatch batch = commander.createBatch();
+				PortController batchPortController = portController.batched(batch);
+
+				batchPortController.setPortMode(PortController.PortMode.ANALOG_IN).thenAccept(commandResponse -> {
 					if (commandResponse.response.name.equals(RESPONSE_OK)) {
 						log.debug("analog input sensor '{}' has been enabled", id);
 
 						state.setIsRunning(true);
 						updateState(state);
 
-						startValueListener();
 						startPoller();
 					}
 
 					Gateway.handlePortCommandResponse(commandResponse);
 				});
+
+				startValueListener(batchPortController);
+
+				batch.send();
 			}
 
 			@Override
@@ -107,16 +132,16 @@ public class EtherioAnalogInputSensor extends AbstractAnalogInputSensor {
 		stopPoller();
 	}
 
-	private void startValueListener() {
+	private void startValueListener(PortController portController) {
 		log.debug("starting value listener for '{}' with change threshold of {} and minimum reporting interval of {}ms", id, changeThreshold, minInterval);
 
-		portController.listenAnalogValueChange(changeThreshold, minInterval);
+		portController.listenAnalogValueChange(changeThreshold, minInterval).thenAccept(Gateway::handlePortCommandResponse);
 	}
 
 	private void startPoller() {
 		log.debug("starting poller for '{}' every {}ms", id, pollInterval);
 
-		pollerInterval = Scheduler.setInterval(this::poll, pollInterval);
+		pollerInterval = Scheduler.INSTANCE.setInterval(id + " poller", this::poll, pollInterval);
 	}
 
 	private void poll() {
@@ -125,7 +150,7 @@ public class EtherioAnalogInputSensor extends AbstractAnalogInputSensor {
 		portController.getAnalogValue().thenAccept(commandResponse -> {
 			float currentValue = commandResponse.response.getFloat(0);
 
-			handleValueChange(getTransformedValue(currentValue));
+			valueStream.submit(getTransformedValue(currentValue));
 		});
 	}
 
@@ -94,7 +94,7 @@ public class EtherioMonitoringSensor extends AbstractMonitoringSensor {
 	private void startPoller() {
 		log.debug("starting poller for '{}'", id);
 
-		pollerInterval = Scheduler.setInterval(this::poll, POLL_INTERVAL);
+		pollerInterval = Scheduler.INSTANCE.setInterval(id + " poller", this::poll, POLL_INTERVAL);
 	}
 
 	private void poll() {
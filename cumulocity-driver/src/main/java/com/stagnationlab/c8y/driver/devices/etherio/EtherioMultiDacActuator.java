@@ -1,6 +1,6 @@
 package com.stagnationlab.c8y.driver.devices.etherio;
 
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -15,19 +15,27 @@ public class EtherioMultiDacActuator extends AbstractMultiDacActuator {
 
 	private final Commander commander;
 	private final int portNumber;
+	private final char[] frameBuffer;
 	private PortController portController;
+	private volatile boolean isFrameFormatSupported = false;
 
 	private static final String DAC_CAPABILITY = "TLC5940";
 	private static final String COMMAND_ENABLE = "enable";
 	private static final String COMMAND_VALUE = "value";
 	private static final String COMMAND_VALUES = "values";
+	private static final String COMMAND_FRAME = "frame";
+	private static final String FRAME_FORMAT_FLAG = "frame";
 	private static final String RESPONSE_OK = "OK";
+	private static final int FRAME_DIGITS_PER_CHANNEL = 3;
+	private static final int MAX_RAW_VALUE = 4095;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
 	public EtherioMultiDacActuator(String id, Commander commander, int portNumber, int channelCount) {
 		super(id, channelCount);
 
 		this.commander = commander;
 		this.portNumber = portNumber;
+		this.frameBuffer = new char[channelCount * FRAME_DIGITS_PER_CHANNEL];
 	}
 
 	@Override
@@ -43,10 +51,17 @@ public class EtherioMultiDacActuator extends AbstractMultiDacActuator {
 
 				portController.sendPortCommand(DAC_CAPABILITY, COMMAND_ENABLE).thenAccept(commandResponse -> {
 					if (commandResponse.response.name.equals(RESPONSE_OK)) {
-						log.debug("multi-dac actuator '{}' has been enabled", id);
+						// older firmware does not report any flags and only understands the text format
+						isFrameFormatSupported = commandResponse.response.getArgumentCount() > 0
+								&& commandResponse.response.getString(0).equals(FRAME_FORMAT_FLAG);
+
+						log.debug("multi-dac actuator '{}' has been enabled, using {} format", id, isFrameFormatSupported ? "frame" : "text");
 
 						state.setIsRunning(true);
 						updateState(state);
+
+						// the driver may have been reset while disconnected
+						invalidateAcknowledgedValues();
 					}
 
 					Gateway.handlePortCommandResponse(commandResponse);
@@ -74,29 +89,70 @@ public class EtherioMultiDacActuator extends AbstractMultiDacActuator {
 	}
 
 	@Override
-	protected void applyChannelValue(int channel, float value) {
-		portController.sendPortCommand(DAC_CAPABILITY, COMMAND_VALUE, channel, value)
-				.thenAccept(Gateway::handlePortCommandResponse);
+	protected CompletableFuture<Boolean> applyChannelValue(int channel, float value) {
+		return sendValuesCommand(portController.sendPortCommand(DAC_CAPABILITY, COMMAND_VALUE, channel, value));
 	}
 
 	@Override
-	protected void applyChannelValues(Map<Integer, Float> values) {
-		String valuesArg = "";
-		boolean isFirst = true;
+	protected CompletableFuture<Boolean> applyChannelValues(int[] channels, float[] values, int count) {
+		if (isFrameFormatSupported) {
+			return applyChannelValuesFrame(channels, count);
+		}
 
-		for (int channel : values.keySet()) {
-			float value = values.get(channel);
+		StringBuilder valuesArg = new StringBuilder(count * 8);
 
-			if (!isFirst) {
-				valuesArg += ",";
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				valuesArg.append(',');
 			}
 
-			valuesArg += channel + "-" + value;
+			valuesArg.append(channels[i]).append('-').append(values[i]);
+		}
 
-			isFirst = false;
+		return sendValuesCommand(portController.sendPortCommand(DAC_CAPABILITY, COMMAND_VALUES, valuesArg.toString()));
+	}
+
+	/**
+	 * Sends the channels as a compact frame of three hex digits (12 bits) per channel.
+	 *
+	 * The frame covers the consecutive range of channels from the lowest to the highest changed one, the unchanged
+	 * channels in between are sent with their current value. The digits are encoded into a reused buffer.
+	 */
+	private CompletableFuture<Boolean> applyChannelValuesFrame(int[] channels, int count) {
+		int firstChannel = Integer.MAX_VALUE;
+		int lastChannel = Integer.MIN_VALUE;
+
+		for (int i = 0; i < count; i++) {
+			firstChannel = Math.min(firstChannel, channels[i]);
+			lastChannel = Math.max(lastChannel, channels[i]);
 		}
 
-		portController.sendPortCommand(DAC_CAPABILITY, COMMAND_VALUES, valuesArg)
-				.thenAccept(Gateway::handlePortCommandResponse);
+		int length = 0;
+
+		for (int channel = firstChannel; channel <= lastChannel; channel++) {
+			// same conversion as the firmware uses for the text format
+			int rawValue = Math.min(Math.max((int)(getDesiredValue(channel) * MAX_RAW_VALUE), 0), MAX_RAW_VALUE);
+
+			frameBuffer[length++] = HEX_DIGITS[(rawValue >> 8) & 0xF];
+			frameBuffer[length++] = HEX_DIGITS[(rawValue >> 4) & 0xF];
+			frameBuffer[length++] = HEX_DIGITS[rawValue & 0xF];
+		}
+
+		return sendValuesCommand(portController.sendPortCommand(DAC_CAPABILITY, COMMAND_FRAME, firstChannel, new String(frameBuffer, 0, length)));
+	}
+
+	// resolves to whether the driver acknowledged the values
+	private CompletableFuture<Boolean> sendValuesCommand(CompletableFuture<Commander.CommandResponse> commandPromise) {
+		return commandPromise.handle((commandResponse, e) -> {
+			if (e != null) {
+				log.warn("sending values to multi-dac actuator '{}' failed ({} - {})", id, e.getClass().getSimpleName(), e.getMessage());
+
+				return false;
+			}
+
+			Gateway.handlePortCommandResponse(commandResponse);
+
+			return commandResponse.response.name.equals(RESPONSE_OK);
+		});
 	}
 }
@@ -1,11 +1,14 @@
 package com.stagnationlab.c8y.driver.devices.simulated;
 
+import java.util.concurrent.ScheduledFuture;
+
 import com.stagnationlab.c8y.driver.devices.AbstractLightSensor;
 import com.stagnationlab.c8y.driver.services.Scheduler;
 
 public class SimulatedLightSensor extends AbstractLightSensor {
 
     private float illuminance = 50.0f;
+    private ScheduledFuture<?> reportInterval;
 
     public SimulatedLightSensor(String id) {
         super(id);
@@ -15,7 +18,16 @@ public class SimulatedLightSensor extends AbstractLightSensor {
     public void start() {
         super.start();
 
-        Scheduler.setInterval(() -> reportIlluminance(getSimulatedIlluminance()), 5000);
+        reportInterval = Scheduler.INSTANCE.setInterval(id + " simulation", () -> reportIlluminance(getSimulatedIlluminance()), 5000);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+
+        if (reportInterval != null) {
+            reportInterval.cancel(false);
+        }
     }
 
     private float getSimulatedIlluminance() {
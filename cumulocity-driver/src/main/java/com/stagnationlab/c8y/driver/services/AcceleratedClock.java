@@ -0,0 +1,41 @@
+package com.stagnationlab.c8y.driver.services;
+
+import com.stagnationlab.etherio.Clock;
+
+/**
+ * Virtual time clock that runs a given number of times faster than real time.
+ *
+ * Starts at the current wall clock time, the durations scheduled on it take proportionally less real time so the
+ * timers and intervals of the controllers run faster too.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+public class AcceleratedClock implements Clock {
+
+	private final double speed;
+	private final long baseTime;
+	private final long baseNanoTime;
+
+	public AcceleratedClock(double speed) {
+		if (speed <= 0) {
+			throw new IllegalArgumentException("clock speed must be positive, got " + speed);
+		}
+
+		this.speed = speed;
+		this.baseTime = System.currentTimeMillis();
+		this.baseNanoTime = System.nanoTime();
+	}
+
+	@Override
+	public long now() {
+		return baseTime + (long)((System.nanoTime() - baseNanoTime) * speed / 1000000.0);
+	}
+
+	@Override
+	public long toRealDuration(long duration) {
+		return (long)Math.ceil(duration / speed);
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+}
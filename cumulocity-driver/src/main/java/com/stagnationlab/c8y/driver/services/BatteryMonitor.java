@@ -35,7 +35,7 @@ public class BatteryMonitor {
 		if (lowBatteryInterval == null || lowBatteryInterval.isCancelled() || lowBatteryInterval.isDone()) {
 			log.debug("starting low battery interval");
 
-			lowBatteryInterval = Scheduler.setInterval(this::reportLowBattery, lowBatteryReportingInterval);
+			lowBatteryInterval = Scheduler.INSTANCE.setInterval(entityName + " low battery", this::reportLowBattery, lowBatteryReportingInterval);
 		}
 	}
 
@@ -0,0 +1,255 @@
+package com.stagnationlab.c8y.driver.services;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.stagnationlab.etherio.Commander;
+
+/**
+ * Gateway wide conflation stage for sensor value streams.
+ *
+ * Each stream is keyed by the commander, port and sensor it comes from and handles its values one at a time on a
+ * small shared pool of threads. While the handler is busy only the newest pending value is kept, the values the edge
+ * detector marks as edges (like threshold crossings) are always kept and handled in order.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public enum ConflatingQueue {
+	INSTANCE;
+
+	public static final int DEFAULT_THREAD_COUNT = 2;
+
+	public interface ValueHandler {
+		void handle(float value);
+	}
+
+	public interface EdgeDetector {
+		boolean isEdge(float previousValue, float value);
+	}
+
+	public static final EdgeDetector NO_EDGES = (previousValue, value) -> false;
+
+	private static class Entry {
+		float value;
+		final boolean isEdge;
+
+		Entry(float value, boolean isEdge) {
+			this.value = value;
+			this.isEdge = isEdge;
+		}
+	}
+
+	public class Stream {
+		private final String key;
+		private final EdgeDetector edgeDetector;
+		private final ValueHandler handler;
+		private final Deque<Entry> entries = new ArrayDeque<>();
+		private boolean isScheduled = false;
+		private boolean hasPreviousValue = false;
+		private float previousValue;
+
+		Stream(String key, EdgeDetector edgeDetector, ValueHandler handler) {
+			this.key = key;
+			this.edgeDetector = edgeDetector;
+			this.handler = handler;
+		}
+
+		public void submit(float value) {
+			submittedCount.incrementAndGet();
+
+			synchronized (this) {
+				boolean isEdge = hasPreviousValue && edgeDetector.isEdge(previousValue, value);
+				Entry lastEntry = entries.peekLast();
+
+				previousValue = value;
+				hasPreviousValue = true;
+
+				// replace the newest pending value unless either of them is an edge
+				if (!isEdge && lastEntry != null && !lastEntry.isEdge) {
+					lastEntry.value = value;
+
+					conflatedCount.incrementAndGet();
+				} else {
+					entries.addLast(new Entry(value, isEdge));
+				}
+
+				if (isScheduled) {
+					return;
+				}
+
+				isScheduled = true;
+			}
+
+			ExecutorService currentExecutor = getExecutor();
+
+			if (currentExecutor != null) {
+				try {
+					currentExecutor.execute(this::drain);
+
+					return;
+				} catch (RejectedExecutionException e) {
+					// shut down in the meantime
+				}
+			}
+
+			log.debug("dropping values of '{}', the queue has been shut down", key);
+
+			droppedCount.incrementAndGet();
+
+			synchronized (this) {
+				entries.clear();
+				isScheduled = false;
+			}
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		private void drain() {
+			while (true) {
+				Entry entry;
+
+				synchronized (this) {
+					entry = entries.pollFirst();
+
+					if (entry == null) {
+						isScheduled = false;
+
+						return;
+					}
+				}
+
+				try {
+					handler.handle(entry.value);
+				} catch (Exception e) {
+					log.warn("handling value {} of '{}' failed ({} - {})", entry.value, key, e.getClass().getSimpleName(), e.getMessage(), e);
+				}
+
+				handledCount.incrementAndGet();
+			}
+		}
+	}
+
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong conflatedCount = new AtomicLong();
+	private final AtomicLong handledCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private ExecutorService executor;
+	private boolean isShutdown = false;
+
+	public synchronized void start(int threadCount) {
+		if (executor != null) {
+			return;
+		}
+
+		isShutdown = false;
+
+		log.info("starting conflating queue with {} threads", threadCount);
+
+		AtomicInteger threadCounter = new AtomicInteger();
+
+		executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "Conflation-" + threadCounter.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		});
+	}
+
+	public void start(Config config) {
+		start(config.getInt("conflation.threadCount", DEFAULT_THREAD_COUNT));
+	}
+
+	public synchronized void shutdown() {
+		if (executor == null) {
+			return;
+		}
+
+		log.info(
+				"shutting down conflating queue (submitted: {}, conflated: {}, handled: {}, dropped: {})",
+				getSubmittedCount(),
+				getConflatedCount(),
+				getHandledCount(),
+				getDroppedCount()
+		);
+
+		executor.shutdownNow();
+		executor = null;
+		isShutdown = true;
+	}
+
+	/**
+	 * Creates a stream of values handled one at a time.
+	 *
+	 * @param key key of the stream for logging, see {@link #buildKey(Commander, int, String)}
+	 * @param edgeDetector detects the values that must not be conflated
+	 * @param handler handler of the values
+	 * @return stream to submit the values to
+	 */
+	public Stream createStream(String key, EdgeDetector edgeDetector, ValueHandler handler) {
+		log.debug("creating conflated stream '{}'", key);
+
+		return new Stream(key, edgeDetector, handler);
+	}
+
+	public Stream createStream(String key, ValueHandler handler) {
+		return createStream(key, NO_EDGES, handler);
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	public long getConflatedCount() {
+		return conflatedCount.get();
+	}
+
+	public long getHandledCount() {
+		return handledCount.get();
+	}
+
+	// number of times the pending values of a stream were dropped as the queue had been shut down
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public static String buildKey(Commander commander, int port, String sensor) {
+		return commander.getMessageTransport().getDescription() + ":" + port + ":" + sensor;
+	}
+
+	/**
+	 * Detects the values that cross any of given thresholds compared to the previous value.
+	 *
+	 * @param thresholds thresholds to detect
+	 * @return edge detector
+	 */
+	public static EdgeDetector thresholdCrossing(float... thresholds) {
+		return (previousValue, value) -> {
+			for (float threshold : thresholds) {
+				if ((previousValue < threshold) != (value < threshold)) {
+					return true;
+				}
+			}
+
+			return false;
+		};
+	}
+
+	// started on first use but never again after shutdown, the values submitted late are dropped instead
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null && !isShutdown) {
+			start(DEFAULT_THREAD_COUNT);
+		}
+
+		return executor;
+	}
+}
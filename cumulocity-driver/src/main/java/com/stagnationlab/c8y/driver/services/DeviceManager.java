@@ -9,6 +9,7 @@ import com.cumulocity.model.ID;
 import com.cumulocity.model.idtype.GId;
 import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
 import com.cumulocity.sdk.client.Platform;
+import com.cumulocity.sdk.client.SDKException;
 
 import c8y.Hardware;
 import c8y.lx.driver.DeviceManagedObject;
@@ -40,16 +41,48 @@ public class DeviceManager {
 
     DeviceManagedObject deviceManagedObject = new DeviceManagedObject(platform);
     ID externalId = DeviceManager.buildExternalId(parent, device, id);
+    GId cachedGlobalId = IdentityCache.INSTANCE.get(externalId);
+    ManagedObjectRepresentation reconciledDevice = InventoryReconciler.INSTANCE.findChildDevice(parent.getId(), cachedGlobalId, type, id);
+
+    // the device and its link to the parent were found in the prefetched device tree
+    if (reconciledDevice != null) {
+      log.debug("returning existing device for {} ({}) from the device tree", id, reconciledDevice.getId().getValue());
+
+      IdentityCache.INSTANCE.put(externalId, reconciledDevice.getId());
+
+      return reconciledDevice;
+    }
+
+    // the cached binding is trusted until the device turns out to be missing
+    if (cachedGlobalId != null) {
+      ManagedObjectRepresentation existingDevice = tryGetManagedObject(platform, cachedGlobalId);
+
+      if (existingDevice != null) {
+        log.debug("returning existing device for {} ({}) using cached global id", id, cachedGlobalId.getValue());
+
+        InventoryReconciler.INSTANCE.ensureLinked(parent.getId(), existingDevice);
+
+        return existingDevice;
+      }
+
+      log.debug("cached global id {} of '{}' no longer exists", cachedGlobalId.getValue(), id);
+
+      IdentityCache.INSTANCE.invalidate(externalId);
+    }
+
     GId globalId = deviceManagedObject.tryGetBinding(externalId);
 
     // return existing device if global id exists
     if (globalId != null) {
       log.debug("global id of '{}': {}", id, globalId.getValue());
 
-      ManagedObjectRepresentation existingDevice = platform.getInventoryApi().get(globalId);
+      ManagedObjectRepresentation existingDevice = tryGetManagedObject(platform, globalId);
 
       if (existingDevice != null) {
-        log.debug("returning existing device for {} ()", id, globalId.getValue());
+        log.debug("returning existing device for {} ({})", id, globalId.getValue());
+
+        IdentityCache.INSTANCE.put(externalId, globalId);
+        InventoryReconciler.INSTANCE.ensureLinked(parent.getId(), existingDevice);
 
         return existingDevice;
       }
@@ -66,7 +99,10 @@ public class DeviceManager {
       device.set(fragment);
     }
 
-    boolean wasCreated = deviceManagedObject.createOrUpdate(device, externalId, parent.getId());
+    // the binding has just been looked up so don't request it again
+    boolean wasCreated = deviceManagedObject.createOrUpdate(device, externalId, parent.getId(), globalId);
+
+    IdentityCache.INSTANCE.put(externalId, device.getId());
 
     log.debug("{} managed object {} of type {} with external id of {} and global id {}",
         wasCreated ? "created" : "updated", id, type, externalId, device.getId().getValue());
@@ -74,6 +110,18 @@ public class DeviceManager {
     return device;
   }
 
+  private static ManagedObjectRepresentation tryGetManagedObject(Platform platform, GId globalId) {
+    try {
+      return platform.getInventoryApi().get(globalId);
+    } catch (SDKException e) {
+      if (e.getHttpStatus() != 404) {
+        throw e;
+      }
+
+      return null;
+    }
+  }
+
   public static ID buildExternalId(ManagedObjectRepresentation parent, ManagedObjectRepresentation child, String id) {
     List<String> tokens = new ArrayList<>();
     Hardware parentHardware = parent.get(Hardware.class);
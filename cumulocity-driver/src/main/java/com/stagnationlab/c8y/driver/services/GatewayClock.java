@@ -0,0 +1,58 @@
+package com.stagnationlab.c8y.driver.services;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.stagnationlab.etherio.Clock;
+
+/**
+ * Gateway wide clock used by the controllers and the scheduler.
+ *
+ * Uses the cheap monotonic clock by default, an accelerated clock can be set up for load and regression runs.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public final class GatewayClock {
+
+	private static volatile Clock clock = Clock.MONOTONIC;
+
+	private GatewayClock() {}
+
+	public static Clock get() {
+		return clock;
+	}
+
+	public static void set(Clock clock) {
+		GatewayClock.clock = clock;
+	}
+
+	/**
+	 * Sets up the clock from the configuration, time runs "clock.speed" times faster than real time.
+	 *
+	 * @param config configuration to use
+	 */
+	public static void setup(Config config) {
+		float speed = config.getFloat("clock.speed", 1.0f);
+
+		if (speed == 1.0f) {
+			set(Clock.MONOTONIC);
+
+			return;
+		}
+
+		log.warn("running on accelerated time, {} times faster than real time", speed);
+
+		set(new AcceleratedClock(speed));
+	}
+
+	public static long now() {
+		return clock.now();
+	}
+
+	public static long since(long time) {
+		return clock.since(time);
+	}
+
+	public static long toRealDuration(long duration) {
+		return clock.toRealDuration(duration);
+	}
+}
@@ -0,0 +1,195 @@
+package com.stagnationlab.c8y.driver.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.cumulocity.model.ID;
+import com.cumulocity.model.idtype.GId;
+
+/**
+ * File backed cache of the external id to global id bindings of the devices.
+ *
+ * The bindings are not validated when loaded, a cached global id is trusted until the managed object it points to
+ * turns out to be missing and the entry is removed. The file is rewritten whenever a binding changes so a warm restart
+ * does not need to look up the known devices from the identity API.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public enum IdentityCache {
+	INSTANCE;
+
+	public static final String DEFAULT_FILENAME = "identity-cache.properties";
+
+	private static final String PLATFORM_KEY = "platform";
+	private static final String BINDING_KEY_PREFIX = "binding.";
+
+	private final Properties bindings = new Properties();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong invalidatedCount = new AtomicLong();
+
+	private File file;
+	private volatile boolean isRunning = false;
+
+	/**
+	 * Loads the cached bindings.
+	 *
+	 * @param filename file to store the bindings in
+	 * @param platform identifier of the platform the bindings belong to, the bindings of any other platform are discarded
+	 */
+	public synchronized void start(String filename, String platform) {
+		if (isRunning) {
+			return;
+		}
+
+		file = new File(filename);
+		bindings.clear();
+
+		if (file.exists()) {
+			try (InputStream inputStream = new FileInputStream(file)) {
+				bindings.load(inputStream);
+			} catch (IOException e) {
+				log.warn("loading identity cache from {} failed ({} - {})", file.getAbsolutePath(), e.getClass().getSimpleName(), e.getMessage());
+
+				bindings.clear();
+			}
+		}
+
+		if (!platform.equals(bindings.getProperty(PLATFORM_KEY, platform))) {
+			log.info("identity cache belongs to platform {}, discarding it", bindings.getProperty(PLATFORM_KEY));
+
+			bindings.clear();
+		}
+
+		bindings.setProperty(PLATFORM_KEY, platform);
+
+		log.info("loaded {} cached identity bindings from {}", bindings.size() - 1, file.getAbsolutePath());
+
+		isRunning = true;
+	}
+
+	public void start(Config config, String platform) {
+		start(config.getString("identity.cacheFile", DEFAULT_FILENAME), platform);
+	}
+
+	public synchronized void shutdown() {
+		if (!isRunning) {
+			return;
+		}
+
+		isRunning = false;
+
+		log.info(
+				"identity cache stopped (hits: {}, misses: {}, invalidated: {})",
+				getHitCount(),
+				getMissCount(),
+				getInvalidatedCount()
+		);
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * Returns the cached global id of given external id.
+	 *
+	 * @param externalId external id to look up
+	 * @return cached global id or null if not known
+	 */
+	public synchronized GId get(ID externalId) {
+		if (!isRunning) {
+			return null;
+		}
+
+		String globalId = bindings.getProperty(getKey(externalId));
+
+		if (globalId == null) {
+			missCount.incrementAndGet();
+
+			return null;
+		}
+
+		hitCount.incrementAndGet();
+
+		return new GId(globalId);
+	}
+
+	public synchronized void put(ID externalId, GId globalId) {
+		if (!isRunning || globalId == null) {
+			return;
+		}
+
+		Object previousGlobalId = bindings.setProperty(getKey(externalId), globalId.getValue());
+
+		if (!globalId.getValue().equals(previousGlobalId)) {
+			save();
+		}
+	}
+
+	/**
+	 * Removes a binding that turned out to point to a managed object that no longer exists.
+	 *
+	 * @param externalId external id to remove
+	 */
+	public synchronized void invalidate(ID externalId) {
+		if (!isRunning || bindings.remove(getKey(externalId)) == null) {
+			return;
+		}
+
+		log.debug("invalidated cached identity binding of {}", externalId.getValue());
+
+		invalidatedCount.incrementAndGet();
+
+		save();
+	}
+
+	public synchronized int getSize() {
+		return Math.max(bindings.size() - 1, 0);
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getInvalidatedCount() {
+		return invalidatedCount.get();
+	}
+
+	private void save() {
+		File temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+
+		// write a copy and swap it in so a crash never leaves a partial cache behind
+		try (OutputStream outputStream = new FileOutputStream(temporaryFile)) {
+			bindings.store(outputStream, "external id to global id bindings");
+		} catch (IOException e) {
+			log.warn("saving identity cache to {} failed ({} - {})", temporaryFile.getAbsolutePath(), e.getClass().getSimpleName(), e.getMessage());
+
+			return;
+		}
+
+		try {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("replacing identity cache {} failed ({} - {})", file.getAbsolutePath(), e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	private static String getKey(ID externalId) {
+		return BINDING_KEY_PREFIX + externalId.getType() + "." + externalId.getValue();
+	}
+}
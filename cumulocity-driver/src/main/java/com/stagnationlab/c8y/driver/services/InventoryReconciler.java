@@ -0,0 +1,269 @@
+package com.stagnationlab.c8y.driver.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceCollectionRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.Platform;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+import com.cumulocity.sdk.client.inventory.InventoryFilter;
+import com.cumulocity.sdk.client.inventory.PagedManagedObjectCollectionRepresentation;
+
+/**
+ * Snapshot of the existing child device tree used to reconcile the devices at startup.
+ *
+ * The whole subtree is fetched level by level with paged queries by id before the devices are discovered, the
+ * devices are then matched against it in memory so only the missing devices are created and only the missing child
+ * links are added instead of looking up every device one by one.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public enum InventoryReconciler {
+	INSTANCE;
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private final Map<String, ManagedObjectRepresentation> devices = new HashMap<>();
+	private final Map<String, Set<String>> childDeviceIds = new HashMap<>();
+	private final AtomicLong queryCount = new AtomicLong();
+	private final AtomicLong matchedCount = new AtomicLong();
+	private final AtomicLong linkedCount = new AtomicLong();
+
+	private InventoryApi inventoryApi;
+	private volatile boolean isLoaded = false;
+
+	/**
+	 * Fetches the device subtree of given root.
+	 *
+	 * @param platform platform to query
+	 * @param rootId id of the managed object to fetch the child devices of
+	 * @param pageSize number of managed objects to request per query
+	 */
+	public synchronized void load(Platform platform, GId rootId, int pageSize) {
+		clear();
+
+		inventoryApi = platform.getInventoryApi();
+
+		long startTime = System.nanoTime();
+		List<GId> levelIds = new ArrayList<>();
+		levelIds.add(rootId);
+
+		try {
+			// one level at a time, the references of each level give the ids of the next
+			while (levelIds.size() > 0) {
+				List<GId> nextLevelIds = new ArrayList<>();
+
+				for (ManagedObjectRepresentation device : fetch(levelIds, pageSize)) {
+					String deviceId = device.getId().getValue();
+
+					if (devices.put(deviceId, device) != null) {
+						continue;
+					}
+
+					Set<String> deviceChildIds = getChildDeviceIds(device);
+
+					childDeviceIds.put(deviceId, deviceChildIds);
+
+					for (String childId : deviceChildIds) {
+						if (!devices.containsKey(childId)) {
+							nextLevelIds.add(new GId(childId));
+						}
+					}
+				}
+
+				levelIds = nextLevelIds;
+			}
+		} catch (Exception e) {
+			log.warn("fetching existing device tree failed, resolving devices one by one ({} - {})", e.getClass().getSimpleName(), e.getMessage());
+
+			clear();
+
+			return;
+		}
+
+		isLoaded = true;
+
+		log.info("fetched existing tree of {} devices in {}ms using {} queries", devices.size(), (System.nanoTime() - startTime) / 1000000L, getQueryCount());
+	}
+
+	public void load(Platform platform, GId rootId, Config config) {
+		load(platform, rootId, config.getInt("inventory.reconcilePageSize", DEFAULT_PAGE_SIZE));
+	}
+
+	/**
+	 * Releases the snapshot, the devices are resolved one by one after this.
+	 */
+	public synchronized void clear() {
+		if (isLoaded) {
+			log.info("device tree reconciled (matched: {}, linked: {})", getMatchedCount(), getLinkedCount());
+		}
+
+		isLoaded = false;
+		devices.clear();
+		childDeviceIds.clear();
+		queryCount.set(0);
+		matchedCount.set(0);
+		linkedCount.set(0);
+	}
+
+	public boolean isLoaded() {
+		return isLoaded;
+	}
+
+	/**
+	 * Finds an existing device that is already linked to given parent.
+	 *
+	 * @param parentId id of the parent device
+	 * @param globalId known global id of the device or null to match the device by type and name
+	 * @param type type of the device
+	 * @param name name the device was created with
+	 * @return existing device or null if not found in the snapshot
+	 */
+	public synchronized ManagedObjectRepresentation findChildDevice(GId parentId, GId globalId, String type, String name) {
+		if (!isLoaded) {
+			return null;
+		}
+
+		Set<String> deviceChildIds = childDeviceIds.get(parentId.getValue());
+
+		if (deviceChildIds == null) {
+			return null;
+		}
+
+		ManagedObjectRepresentation match = null;
+
+		if (globalId != null) {
+			if (deviceChildIds.contains(globalId.getValue())) {
+				match = devices.get(globalId.getValue());
+			}
+		} else {
+			for (String childId : deviceChildIds) {
+				ManagedObjectRepresentation child = devices.get(childId);
+
+				if (child == null || !type.equals(child.getType()) || !name.equals(child.getName())) {
+					continue;
+				}
+
+				// several candidates can not be told apart without the external id
+				if (match != null) {
+					return null;
+				}
+
+				match = child;
+			}
+		}
+
+		if (match != null) {
+			matchedCount.incrementAndGet();
+		}
+
+		return match;
+	}
+
+	/**
+	 * Links given device to the parent unless the snapshot shows it is linked already.
+	 *
+	 * Does nothing when no snapshot is loaded. The link is added outside the lock so the devices can be discovered
+	 * concurrently.
+	 *
+	 * @param parentId id of the parent device
+	 * @param device device to link
+	 */
+	public void ensureLinked(GId parentId, ManagedObjectRepresentation device) {
+		String deviceId = device.getId().getValue();
+		Set<String> deviceChildIds;
+
+		synchronized (this) {
+			if (!isLoaded) {
+				return;
+			}
+
+			deviceChildIds = childDeviceIds.computeIfAbsent(parentId.getValue(), key -> new HashSet<>());
+
+			// marked as linked right away so the same link is not added twice
+			if (!deviceChildIds.add(deviceId)) {
+				return;
+			}
+		}
+
+		log.debug("linking existing device {} to parent {}", deviceId, parentId.getValue());
+
+		ManagedObjectRepresentation handle = new ManagedObjectRepresentation();
+		handle.setId(device.getId());
+		handle.setSelf(device.getSelf());
+
+		ManagedObjectReferenceRepresentation reference = new ManagedObjectReferenceRepresentation();
+		reference.setManagedObject(handle);
+
+		try {
+			inventoryApi.getManagedObjectApi(parentId).addChildDevice(reference);
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				deviceChildIds.remove(deviceId);
+			}
+
+			throw e;
+		}
+
+		linkedCount.incrementAndGet();
+	}
+
+	public long getQueryCount() {
+		return queryCount.get();
+	}
+
+	public long getMatchedCount() {
+		return matchedCount.get();
+	}
+
+	// number of missing links that were added to existing devices
+	public long getLinkedCount() {
+		return linkedCount.get();
+	}
+
+	private List<ManagedObjectRepresentation> fetch(List<GId> ids, int pageSize) {
+		List<ManagedObjectRepresentation> result = new ArrayList<>(ids.size());
+
+		// split the ids so the query string stays short
+		for (int start = 0; start < ids.size(); start += pageSize) {
+			List<GId> pageIds = ids.subList(start, Math.min(start + pageSize, ids.size()));
+
+			queryCount.incrementAndGet();
+
+			PagedManagedObjectCollectionRepresentation page = inventoryApi.getManagedObjectsByFilter(new InventoryFilter().byIds(pageIds)).get(pageSize);
+
+			if (page != null && page.getManagedObjects() != null) {
+				result.addAll(page.getManagedObjects());
+			}
+		}
+
+		return result;
+	}
+
+	private static Set<String> getChildDeviceIds(ManagedObjectRepresentation device) {
+		Set<String> ids = new HashSet<>();
+		ManagedObjectReferenceCollectionRepresentation childDevices = device.getChildDevices();
+
+		if (childDevices == null || childDevices.getReferences() == null) {
+			return ids;
+		}
+
+		for (ManagedObjectReferenceRepresentation reference : childDevices.getReferences()) {
+			if (reference.getManagedObject() != null && reference.getManagedObject().getId() != null) {
+				ids.add(reference.getManagedObject().getId().getValue());
+			}
+		}
+
+		return ids;
+	}
+}
@@ -0,0 +1,292 @@
+package com.stagnationlab.c8y.driver.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.cumulocity.model.JSONBase;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.model.util.ExtensibilityConverter;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.Platform;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+
+/**
+ * Write-behind layer for the device state updates.
+ *
+ * Successive updates of the same managed object are merged fragment by fragment and sent as a single PUT, at most one
+ * per device in every update window. The first update after a quiet period is sent right away, the later ones wait
+ * for the window to pass so the latest state is always sent. The fragments are copied when queued as their owners keep
+ * changing them while the update waits to be sent.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public enum InventoryUpdater {
+	INSTANCE;
+
+	public static final int DEFAULT_UPDATE_WINDOW = 1000;
+
+	private class PendingUpdate {
+		final GId id;
+		ManagedObjectRepresentation representation;
+		Consumer<ManagedObjectRepresentation> callback;
+		Consumer<Exception> failureCallback;
+		long lastSentTime;
+		boolean isScheduled = false;
+
+		PendingUpdate(GId id) {
+			this.id = id;
+
+			// the first update is sent right away
+			this.lastSentTime = now() - updateWindow;
+		}
+	}
+
+	private final Map<String, PendingUpdate> pendingUpdates = new HashMap<>();
+	private final AtomicLong requestedCount = new AtomicLong();
+	private final AtomicLong mergedCount = new AtomicLong();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong spooledCount = new AtomicLong();
+
+	private ScheduledExecutorService executor;
+	private InventoryApi inventoryApi;
+	private long updateWindow;
+	private volatile boolean isRunning = false;
+
+	public synchronized void start(Platform platform, long updateWindow) {
+		if (isRunning) {
+			return;
+		}
+
+		log.info("starting inventory updater (window: {}ms)", updateWindow);
+
+		this.inventoryApi = platform.getInventoryApi();
+		this.updateWindow = updateWindow;
+
+		// updates that could not be sent are stored in the spool and sent from there in order later
+		Spool.INSTANCE.setUploader(Spool.RecordType.INVENTORY, this::sendSpooled);
+
+		// a single thread keeps the updates of each device in order
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "InventoryUpdater");
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		isRunning = true;
+	}
+
+	public void start(Platform platform, Config config) {
+		start(platform, config.getInt("inventory.updateWindow", DEFAULT_UPDATE_WINDOW));
+	}
+
+	/**
+	 * Sends all the pending updates and stops the updater, the updates requested later are sent directly.
+	 */
+	public void shutdown() {
+		List<PendingUpdate> remainingUpdates;
+
+		synchronized (this) {
+			if (!isRunning) {
+				return;
+			}
+
+			isRunning = false;
+			remainingUpdates = new ArrayList<>(pendingUpdates.values());
+		}
+
+		executor.shutdownNow();
+
+		log.info("shutting down inventory updater, flushing pending updates");
+
+		for (PendingUpdate pendingUpdate : remainingUpdates) {
+			send(pendingUpdate);
+		}
+
+		log.info(
+				"inventory updater stopped (requested: {}, merged: {}, sent: {}, spooled: {}, failed: {})",
+				getRequestedCount(),
+				getMergedCount(),
+				getSentCount(),
+				getSpooledCount(),
+				getFailedCount()
+		);
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * Queues updating the fragments of given managed object.
+	 *
+	 * @param id id of the managed object to update
+	 * @param properties fragments to set, later fragments of the same type replace the pending ones
+	 * @param callback called with the updated managed object after the update has been sent
+	 * @param failureCallback called when the update could not be sent nor spooled for sending it later
+	 */
+	public void update(GId id, Object[] properties, Consumer<ManagedObjectRepresentation> callback, Consumer<Exception> failureCallback) {
+		requestedCount.incrementAndGet();
+
+		Map<String, Object> snapshots = new HashMap<>();
+
+		for (Object property : properties) {
+			snapshots.put(ExtensibilityConverter.classToStringRepresentation(property.getClass()), snapshot(property));
+		}
+
+		synchronized (this) {
+			if (!isRunning) {
+				log.warn("updating managed object {} requested but the updater is not running", id.getValue());
+
+				if (failureCallback != null) {
+					failureCallback.accept(new IllegalStateException("inventory updater is not running"));
+				}
+
+				return;
+			}
+
+			PendingUpdate pendingUpdate = pendingUpdates.computeIfAbsent(id.getValue(), key -> new PendingUpdate(id));
+
+			if (pendingUpdate.representation == null) {
+				pendingUpdate.representation = new ManagedObjectRepresentation();
+				pendingUpdate.representation.setId(id);
+			} else {
+				mergedCount.incrementAndGet();
+			}
+
+			for (Map.Entry<String, Object> snapshot : snapshots.entrySet()) {
+				pendingUpdate.representation.setProperty(snapshot.getKey(), snapshot.getValue());
+			}
+
+			pendingUpdate.callback = callback;
+			pendingUpdate.failureCallback = failureCallback;
+
+			if (pendingUpdate.isScheduled) {
+				return;
+			}
+
+			pendingUpdate.isScheduled = true;
+
+			long delay = Math.max(pendingUpdate.lastSentTime + updateWindow - now(), 0);
+
+			executor.schedule(() -> send(pendingUpdate), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public long getRequestedCount() {
+		return requestedCount.get();
+	}
+
+	// number of updates that were folded into an already pending update
+	public long getMergedCount() {
+		return mergedCount.get();
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getSpooledCount() {
+		return spooledCount.get();
+	}
+
+	private void send(PendingUpdate pendingUpdate) {
+		ManagedObjectRepresentation representation;
+		Consumer<ManagedObjectRepresentation> callback;
+		Consumer<Exception> failureCallback;
+
+		synchronized (this) {
+			representation = pendingUpdate.representation;
+			callback = pendingUpdate.callback;
+			failureCallback = pendingUpdate.failureCallback;
+
+			pendingUpdate.representation = null;
+			pendingUpdate.callback = null;
+			pendingUpdate.failureCallback = null;
+			pendingUpdate.isScheduled = false;
+			pendingUpdate.lastSentTime = now();
+		}
+
+		if (representation == null) {
+			return;
+		}
+
+		// an update must not overtake the older updates that are still spooled
+		if (Spool.INSTANCE.hasBacklog() && spool(representation)) {
+			return;
+		}
+
+		try {
+			ManagedObjectRepresentation updatedRepresentation = inventoryApi.update(representation);
+
+			sentCount.incrementAndGet();
+
+			if (callback != null) {
+				callback.accept(updatedRepresentation);
+			}
+		} catch (Exception e) {
+			log.warn("updating managed object {} failed ({} - {})", pendingUpdate.id.getValue(), e.getClass().getSimpleName(), e.getMessage());
+
+			// an update the platform rejected (like one of a deleted managed object) would be rejected again
+			if (!Spool.isRetriable(e) || !spool(representation)) {
+				failedCount.incrementAndGet();
+
+				if (failureCallback != null) {
+					failureCallback.accept(e);
+				}
+			}
+		}
+	}
+
+	private boolean spool(ManagedObjectRepresentation representation) {
+		if (!Spool.INSTANCE.append(Spool.RecordType.INVENTORY, representation)) {
+			return false;
+		}
+
+		spooledCount.incrementAndGet();
+
+		return true;
+	}
+
+	private void sendSpooled(List<String> payloads) {
+		for (String payload : payloads) {
+			try {
+				inventoryApi.update(Spool.parse(payload, ManagedObjectRepresentation.class));
+			} catch (RuntimeException e) {
+				if (Spool.isRetriable(e)) {
+					throw e;
+				}
+
+				Spool.INSTANCE.reject(Spool.RecordType.INVENTORY, e);
+				failedCount.incrementAndGet();
+
+				continue;
+			}
+
+			sentCount.incrementAndGet();
+		}
+	}
+
+	// copies the fragment as the plain structure it is serialized to
+	private static Object snapshot(Object property) {
+		return JSONBase.getJSONParser().parse(Map.class, JSONBase.getJSONGenerator().forValue(property));
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
@@ -0,0 +1,476 @@
+package com.stagnationlab.c8y.driver.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.cumulocity.rest.representation.measurement.MeasurementCollectionRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementMediaType;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import com.cumulocity.sdk.client.Platform;
+import com.cumulocity.sdk.client.PlatformParameters;
+import com.cumulocity.sdk.client.ResponseParser;
+import com.cumulocity.sdk.client.RestConnector;
+import com.cumulocity.sdk.client.measurement.MeasurementApi;
+
+/**
+ * Gateway wide pipeline that uploads the reported measurements in batches.
+ *
+ * Measurements are added to a bounded queue and collected into batches by a single batcher thread, a batch is sent
+ * when it is full or its oldest measurement has waited for the maximum delay. The batches are uploaded as measurement
+ * collections by a small pool of workers so producers never wait for the HTTP requests. A batch the platform rejects is
+ * uploaded again one measurement at a time so only the invalid measurements are lost.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public enum MeasurementPipeline {
+	INSTANCE;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 5000;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final int DEFAULT_MAX_BATCH_DELAY = 1000;
+	public static final int DEFAULT_WORKER_COUNT = 2;
+	public static final int DEFAULT_MAX_OFFER_WAIT = 10;
+
+	private static final String MEASUREMENTS_PATH = "measurement/measurements";
+
+	// thrown when uploading the measurements one by one stopped at a failure worth retrying
+	private static class PartialUploadException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final List<MeasurementRepresentation> remaining;
+
+		PartialUploadException(List<MeasurementRepresentation> remaining, Exception cause) {
+			super(cause.getMessage(), cause);
+
+			this.remaining = remaining;
+		}
+	}
+
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong uploadedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong spooledCount = new AtomicLong();
+	private final AtomicLong backpressureCount = new AtomicLong();
+
+	private BlockingQueue<MeasurementRepresentation> queue;
+	private ExecutorService uploadExecutor;
+	private Thread batcherThread;
+	private MeasurementApi measurementApi;
+	private RestConnector restConnector;
+	private String measurementsUrl;
+	private int batchSize;
+	private int maxBatchDelay;
+	private int maxOfferWait;
+	private volatile boolean isRunning = false;
+
+	public synchronized void start(Platform platform, int queueCapacity, int batchSize, int maxBatchDelay, int workerCount, int maxOfferWait) {
+		if (isRunning) {
+			return;
+		}
+
+		log.info("starting measurement pipeline (queue: {}, batch size: {}, max delay: {}ms, workers: {})", queueCapacity, batchSize, maxBatchDelay, workerCount);
+
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.batchSize = batchSize;
+		this.maxBatchDelay = maxBatchDelay;
+		this.maxOfferWait = maxOfferWait;
+		this.measurementApi = platform.getMeasurementApi();
+
+		// bulk creating is not part of the measurement API of this client version so post the collection directly
+		if (platform instanceof PlatformParameters) {
+			PlatformParameters platformParameters = (PlatformParameters)platform;
+
+			restConnector = new RestConnector(platformParameters, new ResponseParser());
+			measurementsUrl = platformParameters.getHost() + MEASUREMENTS_PATH;
+		} else {
+			log.warn("platform does not expose its parameters, uploading measurements one by one");
+		}
+
+		// measurements that could not be uploaded are stored in the spool and uploaded from there later
+		Spool.INSTANCE.setUploader(Spool.RecordType.MEASUREMENT, this::uploadSpooled);
+
+		AtomicInteger threadCounter = new AtomicInteger();
+
+		// when all the workers are busy the batcher uploads itself, so the measurement queue fills up instead of batches
+		uploadExecutor = new ThreadPoolExecutor(
+				workerCount,
+				workerCount,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(workerCount),
+				runnable -> {
+					Thread thread = new Thread(runnable, "MeasurementUploader-" + threadCounter.getAndIncrement());
+					thread.setDaemon(true);
+
+					return thread;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+
+		isRunning = true;
+
+		batcherThread = new Thread(this::runBatcher, "MeasurementBatcher");
+		batcherThread.setDaemon(true);
+		batcherThread.start();
+	}
+
+	public void start(Platform platform, Config config) {
+		start(
+				platform,
+				config.getInt("measurements.queueCapacity", DEFAULT_QUEUE_CAPACITY),
+				config.getInt("measurements.batchSize", DEFAULT_BATCH_SIZE),
+				config.getInt("measurements.maxBatchDelay", DEFAULT_MAX_BATCH_DELAY),
+				config.getInt("measurements.workerCount", DEFAULT_WORKER_COUNT),
+				config.getInt("measurements.maxOfferWait", DEFAULT_MAX_OFFER_WAIT)
+		);
+	}
+
+	/**
+	 * Uploads all the queued measurements and stops the pipeline.
+	 */
+	public synchronized void shutdown() {
+		if (!isRunning) {
+			return;
+		}
+
+		log.info("shutting down measurement pipeline ({} queued)", queue.size());
+
+		isRunning = false;
+
+		try {
+			batcherThread.join();
+
+			uploadExecutor.shutdown();
+
+			if (!uploadExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+				log.warn("uploading remaining measurements did not complete in time");
+			}
+		} catch (InterruptedException e) {
+			log.warn("waiting for measurement pipeline to complete failed ({} - {})", e.getClass().getSimpleName(), e.getMessage());
+		}
+
+		log.info(
+				"measurement pipeline stopped (queued: {}, uploaded: {}, spooled: {}, failed: {}, rejected: {}, dropped: {}, backpressure: {}, requests: {})",
+				getQueuedCount(),
+				getUploadedCount(),
+				getSpooledCount(),
+				getFailedCount(),
+				getRejectedCount(),
+				getDroppedCount(),
+				getBackpressureCount(),
+				getRequestCount()
+		);
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * Queues given measurement for uploading.
+	 *
+	 * When the queue is full the caller waits for a short while and the measurement is dropped if there is still no
+	 * room so slow uploads can never block the producers for long.
+	 *
+	 * @param measurement measurement to upload
+	 * @return whether the measurement was queued
+	 */
+	public boolean add(MeasurementRepresentation measurement) {
+		if (!isRunning) {
+			log.warn("adding measurement of type {} requested but the pipeline is not running", measurement.getType());
+
+			return false;
+		}
+
+		if (queue.offer(measurement)) {
+			queuedCount.incrementAndGet();
+
+			return true;
+		}
+
+		backpressureCount.incrementAndGet();
+
+		try {
+			if (queue.offer(measurement, maxOfferWait, TimeUnit.MILLISECONDS)) {
+				queuedCount.incrementAndGet();
+
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		long dropped = droppedCount.incrementAndGet();
+
+		// avoid flooding the log when the platform is unreachable for a longer time
+		if (dropped == 1 || dropped % 100 == 0) {
+			log.warn("measurement queue is full, dropped measurement of type {} ({} dropped in total)", measurement.getType(), dropped);
+		}
+
+		return false;
+	}
+
+	public int getQueueSize() {
+		return queue != null ? queue.size() : 0;
+	}
+
+	public long getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	public long getUploadedCount() {
+		return uploadedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	// measurements dropped because the platform rejected them
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getSpooledCount() {
+		return spooledCount.get();
+	}
+
+	// number of times a producer found the queue full and had to wait
+	public long getBackpressureCount() {
+		return backpressureCount.get();
+	}
+
+	private void runBatcher() {
+		log.debug("measurement batcher started");
+
+		while (isRunning) {
+			try {
+				List<MeasurementRepresentation> batch = collectBatch();
+
+				if (batch.size() > 0) {
+					submitBatch(batch);
+				}
+			} catch (InterruptedException e) {
+				log.warn("measurement batcher was interrupted, stopping it");
+
+				break;
+			}
+		}
+
+		flushRemaining();
+
+		log.debug("measurement batcher stopped");
+	}
+
+	private List<MeasurementRepresentation> collectBatch() throws InterruptedException {
+		List<MeasurementRepresentation> batch = new ArrayList<>(batchSize);
+
+		// wait for the first measurement, the batch delay is counted from it
+		MeasurementRepresentation first = queue.poll(maxBatchDelay, TimeUnit.MILLISECONDS);
+
+		if (first == null) {
+			return batch;
+		}
+
+		batch.add(first);
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelay);
+
+		while (batch.size() < batchSize) {
+			queue.drainTo(batch, batchSize - batch.size());
+
+			if (batch.size() >= batchSize) {
+				break;
+			}
+
+			long remainingTime = deadline - System.nanoTime();
+
+			if (remainingTime <= 0) {
+				break;
+			}
+
+			MeasurementRepresentation next = queue.poll(remainingTime, TimeUnit.NANOSECONDS);
+
+			if (next == null) {
+				break;
+			}
+
+			batch.add(next);
+		}
+
+		return batch;
+	}
+
+	private void flushRemaining() {
+		List<MeasurementRepresentation> batch = new ArrayList<>(batchSize);
+
+		while (queue.drainTo(batch, batchSize) > 0) {
+			submitBatch(batch);
+
+			batch = new ArrayList<>(batchSize);
+		}
+	}
+
+	private void submitBatch(List<MeasurementRepresentation> batch) {
+		uploadExecutor.execute(() -> upload(batch));
+	}
+
+	private void upload(List<MeasurementRepresentation> batch) {
+		long startTime = System.nanoTime();
+
+		// while older measurements are still spooled the new ones are queued behind them
+		if (Spool.INSTANCE.hasBacklog() && spool(batch)) {
+			return;
+		}
+
+		try {
+			send(batch);
+		} catch (Exception e) {
+			if (Spool.isRetriable(e)) {
+				log.warn("uploading batch of {} measurements failed ({} - {})", batch.size(), e.getClass().getSimpleName(), e.getMessage());
+
+				if (!spool(batch)) {
+					failedCount.addAndGet(batch.size());
+				}
+
+				return;
+			}
+
+			if (batch.size() == 1) {
+				reject(batch.get(0), e);
+
+				return;
+			}
+
+			log.warn("platform rejected batch of {} measurements, uploading them one by one ({} - {})", batch.size(), e.getClass().getSimpleName(), e.getMessage());
+
+			try {
+				uploadSeparately(batch);
+			} catch (PartialUploadException partialUploadException) {
+				if (!spool(partialUploadException.remaining)) {
+					failedCount.addAndGet(partialUploadException.remaining.size());
+				}
+			}
+
+			return;
+		}
+
+		uploadedCount.addAndGet(batch.size());
+
+		log.trace("uploaded batch of {} measurements in {}ms", batch.size(), (System.nanoTime() - startTime) / 1000000L);
+	}
+
+	private void uploadSpooled(List<String> payloads) throws Exception {
+		List<MeasurementRepresentation> batch = new ArrayList<>(payloads.size());
+
+		for (String payload : payloads) {
+			batch.add(Spool.parse(payload, MeasurementRepresentation.class));
+		}
+
+		try {
+			send(batch);
+		} catch (Exception e) {
+			// a rejected single measurement is dropped by the spool
+			if (Spool.isRetriable(e) || batch.size() == 1) {
+				throw e;
+			}
+
+			// the measurements uploaded before a failure worth retrying are sent again with the retried batch
+			uploadSeparately(batch);
+
+			return;
+		}
+
+		uploadedCount.addAndGet(batch.size());
+	}
+
+	private boolean spool(List<MeasurementRepresentation> batch) {
+		if (!Spool.INSTANCE.isRunning()) {
+			return false;
+		}
+
+		for (MeasurementRepresentation measurement : batch) {
+			if (Spool.INSTANCE.append(Spool.RecordType.MEASUREMENT, measurement)) {
+				spooledCount.incrementAndGet();
+			} else {
+				failedCount.incrementAndGet();
+			}
+		}
+
+		return true;
+	}
+
+	private void send(List<MeasurementRepresentation> batch) {
+		if (restConnector != null && batch.size() > 1) {
+			uploadCollection(batch);
+		} else {
+			uploadIndividually(batch);
+		}
+	}
+
+	private void uploadCollection(List<MeasurementRepresentation> batch) {
+		MeasurementCollectionRepresentation collection = new MeasurementCollectionRepresentation();
+		collection.setMeasurements(batch);
+
+		requestCount.incrementAndGet();
+
+		restConnector.post(measurementsUrl, MeasurementMediaType.MEASUREMENT_COLLECTION, collection);
+	}
+
+	// uploads the measurements one by one so the ones the platform rejects do not hold back the rest of the batch
+	private void uploadSeparately(List<MeasurementRepresentation> batch) throws PartialUploadException {
+		for (int i = 0; i < batch.size(); i++) {
+			MeasurementRepresentation measurement = batch.get(i);
+
+			requestCount.incrementAndGet();
+
+			try {
+				measurementApi.create(measurement);
+			} catch (RuntimeException e) {
+				if (Spool.isRetriable(e)) {
+					throw new PartialUploadException(new ArrayList<>(batch.subList(i, batch.size())), e);
+				}
+
+				reject(measurement, e);
+
+				continue;
+			}
+
+			uploadedCount.incrementAndGet();
+		}
+	}
+
+	private void reject(MeasurementRepresentation measurement, Exception e) {
+		long rejected = rejectedCount.incrementAndGet();
+
+		log.warn("platform rejected measurement of type {}, dropping it ({} rejected in total) ({} - {})", measurement.getType(), rejected, e.getClass().getSimpleName(), e.getMessage());
+	}
+
+	private void uploadIndividually(List<MeasurementRepresentation> batch) {
+		for (MeasurementRepresentation measurement : batch) {
+			requestCount.incrementAndGet();
+
+			measurementApi.create(measurement);
+		}
+	}
+}
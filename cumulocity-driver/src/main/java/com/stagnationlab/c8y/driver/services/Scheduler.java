@@ -2,34 +2,249 @@ package com.stagnationlab.c8y.driver.services;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-import java.util.Date;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Gateway wide scheduler running all the periodic tasks on a small shared pool of threads.
+ *
+ * Every task has a name for logging, cancelling the returned future removes the task from the executor queue and from
+ * the scheduled tasks right away and the number of currently scheduled tasks can be queried to spot leaking intervals.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
 @Slf4j
-public class Scheduler {
+public enum Scheduler {
+	INSTANCE;
 
-	private static int intervalCount = 0;
+	public static final int DEFAULT_THREAD_COUNT = 2;
 
-	public static ScheduledFuture<?> setInterval(Runnable runnable, long intervalMs) {
-		log.debug("creating an interval every {}ms", intervalMs);
+	private class Task implements Runnable {
+		final String name;
+		final Runnable runnable;
+		final boolean isPeriodic;
 
-		ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
-				r -> new Thread(r,  "Interval" + (intervalCount++))
+		Task(String name, Runnable runnable, boolean isPeriodic) {
+			this.name = name;
+			this.runnable = runnable;
+			this.isPeriodic = isPeriodic;
+		}
+
+		@Override
+		public void run() {
+			long startTime = System.nanoTime();
+
+			// a periodic task that throws would never be run again
+			try {
+				runnable.run();
+			} catch (Exception e) {
+				failedCount.incrementAndGet();
+
+				log.warn("running scheduled task '{}' failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+
+			runCount.incrementAndGet();
+			maxRunTime.accumulateAndGet((System.nanoTime() - startTime) / 1000000L, Math::max);
+
+			// a timeout is done once it has run
+			if (!isPeriodic) {
+				tasks.remove(this);
+			}
+		}
+	}
+
+	// future of a scheduled task that forgets the task once it is cancelled
+	private class TaskFuture implements ScheduledFuture<Object> {
+		final Task task;
+		final ScheduledFuture<?> future;
+
+		TaskFuture(Task task, ScheduledFuture<?> future) {
+			this.task = task;
+			this.future = future;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean wasCancelled = future.cancel(mayInterruptIfRunning);
+
+			tasks.remove(task);
+
+			return wasCancelled;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return future.isDone();
+		}
+
+		@Override
+		public Object get() throws InterruptedException, ExecutionException {
+			return future.get();
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return future.get(timeout, unit);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return future.getDelay(unit);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return future.compareTo(other);
+		}
+	}
+
+	private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong maxRunTime = new AtomicLong();
+
+	private ScheduledThreadPoolExecutor executor;
+
+	public synchronized void start(int threadCount) {
+		if (executor != null) {
+			return;
+		}
+
+		log.info("starting scheduler with {} threads", threadCount);
+
+		AtomicInteger threadCounter = new AtomicInteger();
+
+		executor = new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "Scheduler-" + threadCounter.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		// cancelled intervals should not linger in the queue until their next run
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	public void start(Config config) {
+		start(config.getInt("scheduler.threadCount", DEFAULT_THREAD_COUNT));
+	}
+
+	public synchronized void shutdown() {
+		if (executor == null) {
+			return;
+		}
+
+		log.info(
+				"shutting down scheduler (scheduled: {}, runs: {}, failed: {}, max run time: {}ms)",
+				getScheduledTaskCount(),
+				getRunCount(),
+				getFailedCount(),
+				getMaxRunTime()
 		);
 
-		long now = new Date().getTime();
+		executor.shutdownNow();
+		executor = null;
+		tasks.clear();
+	}
+
+	/**
+	 * Runs given task repeatedly, aligned to the multiples of the interval.
+	 *
+	 * The interval is in the gateway clock time so it runs faster on accelerated time.
+	 *
+	 * @param name name of the task for logging
+	 * @param runnable task to run
+	 * @param intervalMs interval in milliseconds
+	 * @return future to cancel the interval with
+	 */
+	public ScheduledFuture<?> setInterval(String name, Runnable runnable, long intervalMs) {
+		log.debug("creating interval '{}' every {}ms", name, intervalMs);
+
+		long now = GatewayClock.now();
 		long initialDelay = intervalMs - (now % intervalMs);
+		Task task = new Task(name, runnable, true);
+
+		tasks.add(task);
 
-		return executorService.scheduleAtFixedRate(
-				runnable,
-				initialDelay,
-				intervalMs,
+		ScheduledFuture<?> future = getExecutor().scheduleAtFixedRate(
+				task,
+				GatewayClock.toRealDuration(initialDelay),
+				Math.max(GatewayClock.toRealDuration(intervalMs), 1),
 				MILLISECONDS
 		);
+
+		return new TaskFuture(task, future);
+	}
+
+	/**
+	 * Runs given task once after a delay.
+	 *
+	 * @param name name of the task for logging
+	 * @param runnable task to run
+	 * @param delayMs delay in milliseconds of the gateway clock
+	 * @return future to cancel the task with
+	 */
+	public ScheduledFuture<?> setTimeout(String name, Runnable runnable, long delayMs) {
+		log.trace("creating timeout '{}' in {}ms", name, delayMs);
+
+		// added before scheduling so a task that runs right away is not left behind
+		Task task = new Task(name, runnable, false);
+
+		tasks.add(task);
+
+		ScheduledFuture<?> future = getExecutor().schedule(task, GatewayClock.toRealDuration(delayMs), MILLISECONDS);
+
+		return new TaskFuture(task, future);
 	}
 
+	// number of tasks that have neither completed nor been cancelled
+	public int getScheduledTaskCount() {
+		return tasks.size();
+	}
+
+	public List<String> getScheduledTaskNames() {
+		List<String> names = new ArrayList<>();
+
+		for (Task task : tasks) {
+			names.add(task.name);
+		}
+
+		return names;
+	}
+
+	public long getRunCount() {
+		return runCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getMaxRunTime() {
+		return maxRunTime.get();
+	}
+
+	private synchronized ScheduledThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			start(DEFAULT_THREAD_COUNT);
+		}
+
+		return executor;
+	}
 }
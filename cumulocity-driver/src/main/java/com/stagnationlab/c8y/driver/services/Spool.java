@@ -0,0 +1,618 @@
+package com.stagnationlab.c8y.driver.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.cumulocity.model.JSONBase;
+import com.cumulocity.rest.representation.BaseResourceRepresentation;
+import com.cumulocity.sdk.client.SDKException;
+import com.sun.jersey.api.client.ClientHandlerException;
+
+/**
+ * Disk backed store-and-forward spool for the data that could not be sent to the platform.
+ *
+ * Records are appended to memory mapped segment files of fixed size and drained in order by a single thread that
+ * hands runs of records of the same type to the registered uploaders in bulk. Fully drained segments are deleted and
+ * when the disk quota is reached the oldest segment is dropped to make room for new data. Only the failures that may
+ * pass (see {@link #isRetriable(Throwable)}) are retried, records the platform rejects are dropped so they never hold
+ * back the rest of the data.
+ *
+ * Segment layout: the first four bytes hold the read position that has been drained so far followed by the records,
+ * each record is the payload length, the record type and the UTF-8 payload. A zero length marks the end of the data.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public enum Spool {
+	INSTANCE;
+
+	public enum RecordType {
+		MEASUREMENT,
+		EVENT,
+		INVENTORY
+	}
+
+	public interface Uploader {
+
+		/**
+		 * Uploads given records, throwing a retriable exception makes the spool retry the same records later while any
+		 * other exception drops them.
+		 *
+		 * @param payloads payloads of the records in the order they were appended
+		 * @throws Exception if uploading failed
+		 */
+		void upload(List<String> payloads) throws Exception;
+	}
+
+	public static final String DEFAULT_DIRECTORY = "spool";
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_QUOTA = 256L * 1024 * 1024;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static final String SEGMENT_EXTENSION = ".seg";
+	private static final int HEADER_SIZE = 4;
+	private static final int RECORD_HEADER_SIZE = 5;
+	private static final long MIN_RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 30000;
+
+	private class Segment {
+		final long index;
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		int readPosition = HEADER_SIZE;
+		int writePosition = HEADER_SIZE;
+
+		Segment(long index, File file) throws IOException {
+			this.index = index;
+			this.file = file;
+			this.channel = FileChannel.open(
+					file.toPath(),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE
+			);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+
+		// finds the drained and written positions of an existing segment, returns the number of records left to drain
+		int recover() {
+			readPosition = Math.max(buffer.getInt(0), HEADER_SIZE);
+			writePosition = HEADER_SIZE;
+
+			int recordCount = 0;
+
+			while (writePosition + RECORD_HEADER_SIZE <= segmentSize) {
+				int length = buffer.getInt(writePosition);
+				int type = buffer.get(writePosition + 4);
+
+				if (length <= 0 || writePosition + RECORD_HEADER_SIZE + length > segmentSize || type < 0 || type >= RECORD_TYPES.length) {
+					break;
+				}
+
+				if (writePosition >= readPosition) {
+					recordCount++;
+				}
+
+				writePosition += RECORD_HEADER_SIZE + length;
+			}
+
+			readPosition = Math.min(readPosition, writePosition);
+
+			return recordCount;
+		}
+
+		boolean hasRoom(int length) {
+			return writePosition + RECORD_HEADER_SIZE + length <= segmentSize;
+		}
+
+		void append(RecordType type, byte[] payload) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(writePosition + 4);
+			view.put((byte)type.ordinal());
+			view.put(payload);
+
+			// the length is written last so a partially written record is never read back
+			buffer.putInt(writePosition, payload.length);
+
+			writePosition += RECORD_HEADER_SIZE + payload.length;
+		}
+
+		int countRemainingRecords() {
+			int count = 0;
+
+			for (int position = readPosition; position < writePosition; position += RECORD_HEADER_SIZE + buffer.getInt(position)) {
+				count++;
+			}
+
+			return count;
+		}
+
+		void close() {
+			buffer.force();
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.warn("closing spool segment {} failed ({} - {})", file.getName(), e.getClass().getSimpleName(), e.getMessage());
+			}
+		}
+
+		void delete() {
+			close();
+
+			if (!file.delete()) {
+				log.warn("deleting spool segment {} failed", file.getName());
+			}
+		}
+	}
+
+	private class Batch {
+		final Segment segment;
+		final RecordType type;
+		final List<String> payloads;
+		final int endPosition;
+
+		Batch(Segment segment, RecordType type, List<String> payloads, int endPosition) {
+			this.segment = segment;
+			this.type = type;
+			this.payloads = payloads;
+			this.endPosition = endPosition;
+		}
+	}
+
+	private static final RecordType[] RECORD_TYPES = RecordType.values();
+
+	private final List<Segment> segments = new ArrayList<>();
+	private final Map<RecordType, Uploader> uploaders = new EnumMap<>(RecordType.class);
+	private final AtomicLong appendedCount = new AtomicLong();
+	private final AtomicLong drainedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong failedUploadCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private File directory;
+	private int segmentSize;
+	private int maxSegmentCount;
+	private int batchSize;
+	private long pendingCount = 0;
+	private long nextSegmentIndex = 0;
+	private Thread drainThread;
+	private volatile boolean isRunning = false;
+
+	public synchronized void start(String directoryName, int segmentSize, long quota, int batchSize) {
+		if (isRunning) {
+			return;
+		}
+
+		this.directory = new File(directoryName);
+		this.segmentSize = segmentSize;
+		this.maxSegmentCount = (int)Math.max(quota / segmentSize, 2);
+		this.batchSize = batchSize;
+		this.pendingCount = 0;
+		this.nextSegmentIndex = 0;
+
+		log.info("starting spool in '{}' (segment size: {}, max segments: {})", directory.getAbsolutePath(), segmentSize, maxSegmentCount);
+
+		try {
+			Files.createDirectories(directory.toPath());
+
+			recoverSegments();
+		} catch (IOException e) {
+			log.warn("opening spool in '{}' failed, data that cannot be sent will be lost ({} - {})", directory.getAbsolutePath(), e.getClass().getSimpleName(), e.getMessage());
+
+			return;
+		}
+
+		isRunning = true;
+
+		drainThread = new Thread(this::runDrain, "SpoolDrain");
+		drainThread.setDaemon(true);
+		drainThread.start();
+	}
+
+	public void start(Config config) {
+		start(
+				config.getString("spool.directory", DEFAULT_DIRECTORY),
+				config.getInt("spool.segmentSize", DEFAULT_SEGMENT_SIZE),
+				Long.valueOf(config.getString("spool.quota", String.valueOf(DEFAULT_QUOTA))),
+				config.getInt("spool.batchSize", DEFAULT_BATCH_SIZE)
+		);
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			if (!isRunning) {
+				return;
+			}
+
+			isRunning = false;
+
+			notifyAll();
+		}
+
+		try {
+			drainThread.join();
+		} catch (InterruptedException e) {
+			log.warn("waiting for spool drain to stop failed ({} - {})", e.getClass().getSimpleName(), e.getMessage());
+		}
+
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+
+			segments.clear();
+
+			log.info(
+					"spool stopped with {} record(s) left (appended: {}, drained: {}, dropped: {}, rejected: {}, failed uploads: {})",
+					pendingCount,
+					getAppendedCount(),
+					getDrainedCount(),
+					getDroppedCount(),
+					getRejectedCount(),
+					getFailedUploadCount()
+			);
+		}
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	public synchronized void setUploader(RecordType type, Uploader uploader) {
+		uploaders.put(type, uploader);
+
+		notifyAll();
+	}
+
+	/**
+	 * Returns whether there are records waiting to be drained.
+	 *
+	 * While there is a backlog new data should be appended too so it is sent after the older data.
+	 *
+	 * @return whether there are spooled records
+	 */
+	public synchronized boolean hasBacklog() {
+		return pendingCount > 0;
+	}
+
+	/**
+	 * Appends a record to the spool.
+	 *
+	 * @param type type of the record, selects the uploader
+	 * @param payload payload to store
+	 * @return whether the record was stored
+	 */
+	public synchronized boolean append(RecordType type, String payload) {
+		if (!isRunning) {
+			log.warn("appending {} record to the spool requested but it is not running", type);
+
+			return false;
+		}
+
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+
+		if (HEADER_SIZE + RECORD_HEADER_SIZE + bytes.length > segmentSize) {
+			log.warn("{} record of {} bytes does not fit in a spool segment, dropping it", type, bytes.length);
+
+			droppedCount.incrementAndGet();
+
+			return false;
+		}
+
+		Segment segment = getWriteSegment(bytes.length);
+
+		if (segment == null) {
+			droppedCount.incrementAndGet();
+
+			return false;
+		}
+
+		segment.append(type, bytes);
+
+		pendingCount++;
+		appendedCount.incrementAndGet();
+
+		notifyAll();
+
+		return true;
+	}
+
+	public boolean append(RecordType type, BaseResourceRepresentation representation) {
+		return isRunning && append(type, JSONBase.getJSONGenerator().forValue(representation));
+	}
+
+	public static <T> T parse(String payload, Class<T> type) {
+		return JSONBase.getJSONParser().parse(type, payload);
+	}
+
+	/**
+	 * Returns whether a failed request is worth retrying later.
+	 *
+	 * Connection errors, timeouts and server errors may pass, other client errors (like a missing managed object or
+	 * invalid data) would fail the same way again.
+	 *
+	 * @param e exception the request failed with
+	 * @return whether the request should be retried
+	 */
+	public static boolean isRetriable(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SDKException && ((SDKException)cause).getHttpStatus() > 0) {
+				int status = ((SDKException)cause).getHttpStatus();
+
+				return status >= 500 || status == 408 || status == 429;
+			}
+
+			if (cause instanceof ClientHandlerException || cause instanceof IOException) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Drops a spooled record the platform rejected.
+	 *
+	 * @param type type of the record
+	 * @param e exception the upload failed with
+	 */
+	public void reject(RecordType type, Exception e) {
+		rejectedCount.incrementAndGet();
+
+		log.warn("platform rejected spooled {} record, dropping it ({} - {})", type, e.getClass().getSimpleName(), e.getMessage());
+	}
+
+	public synchronized long getPendingCount() {
+		return pendingCount;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getAppendedCount() {
+		return appendedCount.get();
+	}
+
+	public long getDrainedCount() {
+		return drainedCount.get();
+	}
+
+	// records lost because they did not fit or their segment was dropped to stay within the quota
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getFailedUploadCount() {
+		return failedUploadCount.get();
+	}
+
+	// records dropped because the platform rejected them
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private void recoverSegments() throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+
+		if (files == null) {
+			return;
+		}
+
+		Arrays.sort(files);
+
+		for (File file : files) {
+			String name = file.getName();
+			long index;
+
+			try {
+				index = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				log.warn("ignoring unexpected file '{}' in the spool", name);
+
+				continue;
+			}
+
+			Segment segment = new Segment(index, file);
+			int recordCount = segment.recover();
+
+			segments.add(segment);
+			pendingCount += recordCount;
+			nextSegmentIndex = index + 1;
+		}
+
+		if (pendingCount > 0) {
+			log.info("recovered {} spooled record(s) in {} segment(s)", pendingCount, segments.size());
+		}
+	}
+
+	private Segment getWriteSegment(int length) {
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+		if (segment != null && segment.hasRoom(length)) {
+			return segment;
+		}
+
+		// make room for the new segment by dropping the oldest data
+		while (segments.size() >= maxSegmentCount) {
+			Segment oldestSegment = segments.remove(0);
+			int recordCount = oldestSegment.countRemainingRecords();
+
+			log.warn("spool quota reached, dropping segment {} with {} record(s)", oldestSegment.file.getName(), recordCount);
+
+			pendingCount -= recordCount;
+			droppedCount.addAndGet(recordCount);
+
+			oldestSegment.delete();
+		}
+
+		if (segment != null) {
+			segment.buffer.force();
+		}
+
+		File file = new File(directory, String.format("%020d%s", nextSegmentIndex, SEGMENT_EXTENSION));
+
+		try {
+			Segment newSegment = new Segment(nextSegmentIndex++, file);
+			newSegment.buffer.putInt(0, HEADER_SIZE);
+
+			segments.add(newSegment);
+
+			return newSegment;
+		} catch (IOException e) {
+			log.warn("creating spool segment {} failed ({} - {})", file.getName(), e.getClass().getSimpleName(), e.getMessage());
+
+			return null;
+		}
+	}
+
+	private void runDrain() {
+		log.debug("spool drain started");
+
+		long retryDelay = MIN_RETRY_DELAY;
+
+		while (isRunning) {
+			Batch batch;
+			Uploader uploader;
+
+			try {
+				synchronized (this) {
+					batch = readBatch();
+					uploader = batch != null ? uploaders.get(batch.type) : null;
+
+					if (batch == null || uploader == null) {
+						wait(MIN_RETRY_DELAY);
+
+						continue;
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			try {
+				uploader.upload(batch.payloads);
+			} catch (Exception e) {
+				failedUploadCount.incrementAndGet();
+
+				// retrying would fail the same way and hold back all the newer data
+				if (!isRetriable(e)) {
+					rejectedCount.addAndGet(batch.payloads.size());
+
+					log.warn("platform rejected {} spooled {} record(s), dropping them ({} - {})", batch.payloads.size(), batch.type, e.getClass().getSimpleName(), e.getMessage());
+
+					commitBatch(batch);
+
+					continue;
+				}
+
+				log.warn("uploading {} spooled {} record(s) failed, retrying in {}ms ({} - {})", batch.payloads.size(), batch.type, retryDelay, e.getClass().getSimpleName(), e.getMessage());
+
+				sleep(retryDelay);
+
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+
+				continue;
+			}
+
+			retryDelay = MIN_RETRY_DELAY;
+
+			drainedCount.addAndGet(batch.payloads.size());
+
+			commitBatch(batch);
+		}
+
+		log.debug("spool drain stopped");
+	}
+
+	// collects a run of records of the same type from the oldest segment
+	private Batch readBatch() {
+		while (!segments.isEmpty()) {
+			Segment segment = segments.get(0);
+			boolean isWriteSegment = segments.size() == 1;
+
+			if (segment.readPosition >= segment.writePosition) {
+				if (isWriteSegment) {
+					return null;
+				}
+
+				// fully drained segment, reclaim it
+				segments.remove(0);
+				segment.delete();
+
+				continue;
+			}
+
+			RecordType type = RECORD_TYPES[segment.buffer.get(segment.readPosition + 4)];
+			List<String> payloads = new ArrayList<>();
+			ByteBuffer view = segment.buffer.duplicate();
+			int position = segment.readPosition;
+
+			while (position < segment.writePosition && payloads.size() < batchSize) {
+				int length = segment.buffer.getInt(position);
+
+				if (segment.buffer.get(position + 4) != type.ordinal()) {
+					break;
+				}
+
+				byte[] bytes = new byte[length];
+
+				view.position(position + RECORD_HEADER_SIZE);
+				view.get(bytes);
+
+				payloads.add(new String(bytes, StandardCharsets.UTF_8));
+
+				position += RECORD_HEADER_SIZE + length;
+			}
+
+			return new Batch(segment, type, payloads, position);
+		}
+
+		return null;
+	}
+
+	private synchronized void commitBatch(Batch batch) {
+		// the segment may have been dropped to stay within the quota while uploading
+		if (!segments.contains(batch.segment)) {
+			return;
+		}
+
+		batch.segment.readPosition = batch.endPosition;
+		batch.segment.buffer.putInt(0, batch.endPosition);
+
+		pendingCount -= batch.payloads.size();
+	}
+
+	private synchronized void sleep(long delay) {
+		long deadline = System.currentTimeMillis() + delay;
+		long remainingTime = delay;
+
+		// appends wake the drain up as well so keep waiting until the delay has passed, unless shutting down
+		while (isRunning && remainingTime > 0) {
+			try {
+				wait(remainingTime);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				return;
+			}
+
+			remainingTime = deadline - System.currentTimeMillis();
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package com.stagnationlab.c8y.driver.services;
 
 import java.math.BigDecimal;
-import java.util.Calendar;
 import java.util.Random;
 
 import org.svenson.JSON;
@@ -51,14 +50,6 @@ public final class Util {
 		return result;
 	}
 
-	public static long now() {
-		return Calendar.getInstance().getTimeInMillis();
-	}
-
-	public static long since(long millis) {
-    	return now() - millis;
-	}
-
 //	public static float round(float value, int decimalPlaces) {
 //		float factor = (float)Math.pow(10.0, decimalPlaces);
 //
@@ -0,0 +1,37 @@
+package com.stagnationlab.etherio;
+
+/**
+ * Source of the current time in milliseconds.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+public interface Clock {
+
+	/**
+	 * Monotonic clock that starts at the wall clock time and is not affected by the wall clock being adjusted later.
+	 */
+	Clock MONOTONIC = new Clock() {
+		private final long baseTime = System.currentTimeMillis();
+		private final long baseNanoTime = System.nanoTime();
+
+		@Override
+		public long now() {
+			return baseTime + (System.nanoTime() - baseNanoTime) / 1000000L;
+		}
+	};
+
+	long now();
+
+	default long since(long time) {
+		return now() - time;
+	}
+
+	/**
+	 * Converts a duration of this clock to the real time it takes.
+	 *
+	 * @param duration duration in milliseconds of this clock
+	 * @return duration in real milliseconds
+	 */
+	default long toRealDuration(long duration) {
+		return duration;
+	}
+}
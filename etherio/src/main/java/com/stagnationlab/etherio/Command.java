@@ -1,34 +1,61 @@
 package com.stagnationlab.etherio;
 
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class Command {
 
+    static final char DELIMITER = ':';
+    private static final char ESCAPE = '\\';
+    private static final String[] NO_ARGUMENTS = new String[0];
+
     public final int id;
     public final String name;
-    private final List<String> arguments;
+
+    // parsed commands keep the source line and the argument token offsets, the strings are only created when asked for
+    private final String source;
+    private final int[] argumentOffsets;
+    private final String[] arguments;
 
     public Command(int id, String name, Object... arguments) {
         this.id = id;
         this.name = name;
-        this.arguments = new ArrayList<>();
+        this.source = null;
+        this.argumentOffsets = null;
+        this.arguments = arguments.length == 0 ? NO_ARGUMENTS : new String[arguments.length];
 
-        for (Object argument : arguments) {
-            this.arguments.add(argument.toString());
+        for (int i = 0; i < arguments.length; i++) {
+            this.arguments[i] = arguments[i].toString();
         }
     }
 
+    private Command(int id, String name, String source, int[] argumentOffsets, int argumentCount) {
+        this.id = id;
+        this.name = name;
+        this.source = source;
+        this.argumentOffsets = argumentOffsets;
+        this.arguments = argumentCount == 0 ? NO_ARGUMENTS : new String[argumentCount];
+    }
+
+    public int getArgumentCount() {
+        return arguments.length;
+    }
+
     public String getString(int argumentIndex) {
-        if (argumentIndex + 1 > arguments.size()) {
+        if (argumentIndex < 0 || argumentIndex >= arguments.length) {
             throw new IllegalArgumentException("Invalid argument index provided");
         }
 
-        return arguments.get(argumentIndex);
+        String argument = arguments[argumentIndex];
+
+        if (argument == null) {
+            argument = decodeToken(source, argumentOffsets[argumentIndex * 2], argumentOffsets[argumentIndex * 2 + 1]);
+            arguments[argumentIndex] = argument;
+        }
+
+        return argument;
     }
 
     public int getInt(int argumentIndex) {
@@ -44,42 +71,169 @@ public class Command {
     }
 
     public List<String> getArguments(int startIndex) {
-        return arguments.subList(startIndex, arguments.size());
+        return getArguments().subList(startIndex, arguments.length);
     }
 
     public List<String> getArguments() {
-        return arguments;
+        for (int i = 0; i < arguments.length; i++) {
+            getString(i);
+        }
+
+        return Arrays.asList(arguments);
+    }
+
+    /**
+     * Appends the wire format of the command to given buffer, escaping any delimiters in the arguments.
+     *
+     * @param buffer buffer to append to, can be reused between commands
+     * @return the same buffer
+     */
+    public StringBuilder encode(StringBuilder buffer) {
+        buffer.append(id).append(DELIMITER).append(name);
+
+        for (int i = 0; i < arguments.length; i++) {
+            buffer.append(DELIMITER);
+
+            if (arguments[i] == null) {
+                // parsed arguments are still in escaped form in the source
+                int start = argumentOffsets[i * 2];
+                int end = argumentOffsets[i * 2 + 1];
+
+                buffer.append(source, start, end < 0 ? ~end : end);
+            } else {
+                appendEscaped(buffer, arguments[i]);
+            }
+        }
+
+        return buffer;
     }
 
     @Override
     public String toString() {
-        String command = Integer.toString(id) + ":" + name;
+        return encode(new StringBuilder()).toString();
+    }
 
-        for (Object argument : arguments) {
-            command += ":" + argument.toString();
+    public static Command parse(String command) throws IllegalArgumentException {
+        int length = command.length();
+
+        // trailing empty tokens are ignored
+        while (length > 0 && command.charAt(length - 1) == DELIMITER && !isEscaped(command, length - 1)) {
+            length--;
         }
 
-        return command;
-    }
+        // parse the id in place
+        int position = 0;
+        int id = 0;
+        boolean isNegative = false;
 
-    public static Command parse(String command) throws IllegalArgumentException {
-        // split on : ignoring escaped \: separators
-        List<String> tokens = Arrays.stream(command.split("(?<!\\\\):"))
-		        .map(token -> token.replaceAll("\\\\:", ":")).collect(Collectors.toList());
+        if (position < length && command.charAt(position) == '-') {
+            isNegative = true;
+            position++;
+        }
+
+        int idStart = position;
+
+        while (position < length && command.charAt(position) != DELIMITER) {
+            char character = command.charAt(position);
+
+            if (character < '0' || character > '9') {
+                throw new IllegalArgumentException("Invalid command id in '" + command + "'");
+            }
 
-        if (tokens.size() < 2) {
+            id = id * 10 + (character - '0');
+            position++;
+        }
+
+        if (position == idStart || position >= length) {
             throw new IllegalArgumentException("Expected at least command id and name");
         }
 
-        int id = Integer.parseInt(tokens.get(0));
-        String name = tokens.get(1);
-        List<String> arguments = new ArrayList<>();
+        if (isNegative) {
+            id = -id;
+        }
+
+        // parse the name
+        int nameStart = ++position;
+        int nameEnd = findTokenEnd(command, position, length);
+        String name = decodeToken(command, nameStart, nameEnd);
+
+        position = (nameEnd < 0 ? ~nameEnd : nameEnd) + 1;
+
+        // only record the argument offsets, negative end offset marks tokens containing escaped delimiters
+        int[] argumentOffsets = new int[8];
+        int argumentCount = 0;
+
+        while (position <= length) {
+            int argumentEnd = findTokenEnd(command, position, length);
 
-        if (tokens.size() >= 3) {
-            arguments.addAll(tokens.subList(2, tokens.size()));
+            if (argumentCount * 2 == argumentOffsets.length) {
+                argumentOffsets = Arrays.copyOf(argumentOffsets, argumentOffsets.length * 2);
+            }
+
+            argumentOffsets[argumentCount * 2] = position;
+            argumentOffsets[argumentCount * 2 + 1] = argumentEnd;
+            argumentCount++;
+
+            position = (argumentEnd < 0 ? ~argumentEnd : argumentEnd) + 1;
         }
 
-        return new Command(id, name, arguments.toArray());
+        return new Command(id, name, command, argumentOffsets, argumentCount);
+    }
+
+    // returns the end offset of the token starting at given position, bitwise negated if the token contains escapes
+    private static int findTokenEnd(String source, int start, int length) {
+        boolean hasEscapes = false;
+
+        for (int i = start; i < length; i++) {
+            char character = source.charAt(i);
+
+            if (character == ESCAPE && i + 1 < length && source.charAt(i + 1) == DELIMITER) {
+                hasEscapes = true;
+                i++;
+            } else if (character == DELIMITER) {
+                return hasEscapes ? ~i : i;
+            }
+        }
+
+        return hasEscapes ? ~length : length;
+    }
+
+    private static String decodeToken(String source, int start, int end) {
+        if (end >= 0) {
+            return source.substring(start, end);
+        }
+
+        end = ~end;
+
+        StringBuilder token = new StringBuilder(end - start);
+
+        for (int i = start; i < end; i++) {
+            char character = source.charAt(i);
+
+            if (character == ESCAPE && i + 1 < end && source.charAt(i + 1) == DELIMITER) {
+                continue;
+            }
+
+            token.append(character);
+        }
+
+        return token.toString();
+    }
+
+    private static boolean isEscaped(String source, int position) {
+        return position > 0 && source.charAt(position - 1) == ESCAPE;
+    }
+
+    private static void appendEscaped(StringBuilder buffer, String argument) {
+        for (int i = 0; i < argument.length(); i++) {
+            char character = argument.charAt(i);
+
+            if (character == DELIMITER) {
+                buffer.append(ESCAPE);
+            }
+
+            buffer.append(character);
+        }
     }
 
 }
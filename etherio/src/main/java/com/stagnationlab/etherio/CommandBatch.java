@@ -0,0 +1,81 @@
+package com.stagnationlab.etherio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Commands collected to be sent to a commander as a single frame with a single multi-part response.
+ *
+ * The commands are run in the order they were added. Firmware without batch support gets the same commands pipelined
+ * one by one instead, either way each command gets its own response.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+public class CommandBatch {
+
+	static class Part {
+		final String name;
+		final Object[] arguments;
+		final CompletableFuture<Commander.CommandResponse> promise = new CompletableFuture<>();
+
+		Part(String name, Object[] arguments) {
+			this.name = name;
+			this.arguments = arguments;
+		}
+	}
+
+	private final Commander commander;
+	private final List<Part> parts = new ArrayList<>();
+	private boolean isSent = false;
+
+	CommandBatch(Commander commander) {
+		this.commander = commander;
+	}
+
+	public Commander getCommander() {
+		return commander;
+	}
+
+	/**
+	 * Adds a command to the batch.
+	 *
+	 * @param name name of the command
+	 * @param arguments arguments of the command
+	 * @return promise of the response, resolved once the batch has been sent and responded to
+	 */
+	public synchronized CompletableFuture<Commander.CommandResponse> add(String name, Object... arguments) {
+		if (isSent) {
+			throw new IllegalStateException("adding command '" + name + "' to a batch that has already been sent");
+		}
+
+		Part part = new Part(name, arguments);
+
+		parts.add(part);
+
+		return part.promise;
+	}
+
+	public synchronized int size() {
+		return parts.size();
+	}
+
+	/**
+	 * Sends the collected commands, a batch can be sent only once.
+	 *
+	 * @return promise resolved once all the commands have been responded to
+	 */
+	public CompletableFuture<Void> send() {
+		List<Part> sentParts;
+
+		synchronized (this) {
+			if (isSent) {
+				throw new IllegalStateException("batch has already been sent");
+			}
+
+			isSent = true;
+			sentParts = new ArrayList<>(parts);
+		}
+
+		return commander.sendBatch(sentParts);
+	}
+}
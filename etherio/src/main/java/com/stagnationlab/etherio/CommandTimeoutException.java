@@ -0,0 +1,21 @@
+package com.stagnationlab.etherio;
+
+import java.util.concurrent.TimeoutException;
+
+@SuppressWarnings({ "WeakerAccess", "unused" })
+public class CommandTimeoutException extends TimeoutException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Command command;
+
+	public CommandTimeoutException(Command command, String transportDescription, long timeoutMs) {
+		super("command #" + command.id + " '" + command.name + "' to " + transportDescription + " timed out after " + timeoutMs + "ms");
+
+		this.command = command;
+	}
+
+	public Command getCommand() {
+		return command;
+	}
+}
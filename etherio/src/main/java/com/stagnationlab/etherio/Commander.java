@@ -2,10 +2,14 @@ package com.stagnationlab.etherio;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -31,26 +35,88 @@ public class Commander implements MessageTransport.EventListener {
 		void handleRemoteCommand(Command command);
 	}
 
+	// whether the firmware runs batch commands, probed once per connection
+	private enum BatchSupport {
+		UNKNOWN,
+		SUPPORTED,
+		UNSUPPORTED
+	}
+
 	private class CommandPromise {
 		final CommandResponse commandResponse;
 		final CompletableFuture<CommandResponse> promise;
+		final long timeout;
+		final long deadline;
 
-		CommandPromise(CommandResponse commandResponse, CompletableFuture<CommandResponse> promise) {
+		CommandPromise(CommandResponse commandResponse, CompletableFuture<CommandResponse> promise, long timeout) {
 			this.commandResponse = commandResponse;
 			this.promise = promise;
+			this.timeout = timeout;
+			this.deadline = timeout > 0 ? Clock.MONOTONIC.now() + timeout : Long.MAX_VALUE;
 		}
 	}
 
+	public static final long DEFAULT_COMMAND_TIMEOUT = 10000;
+
+	// the firmware accepts at most this many arguments so larger batches are split
+	public static final int MAX_BATCH_SIZE = 8;
+	private static final String COMMAND_BATCH = "batch";
+	private static final String COMMAND_PING = "ping";
+	private static final String RESPONSE_OK = "OK";
+	private static final String RESPONSE_ERROR = "ERROR";
+	private static final String ERROR_UNSUPPORTED_COMMAND = "unsupported command";
+
+	// events that are replaced by the next one of the same kind so dropping one loses nothing that lasts
+	private static final String[] REPLACEABLE_EVENT_PREFIXES = {
+			"0:ANALOG_IN:",
+			"0:HEARTBEAT",
+	};
+	private static final long EXPIRE_SWEEP_INTERVAL = 500;
+
+	// commands are encoded into a per-thread buffer that is reused for every frame
+	private static final ThreadLocal<StringBuilder> frameBuffer = ThreadLocal.withInitial(() -> new StringBuilder(64));
+
 	private final MessageTransport messageTransport;
-	private final Map<Integer, CommandPromise> commandPromises;
+	private final MessageDispatcher.Lane dispatcherLane;
+	private final ConcurrentIntMap<CommandPromise> commandPromises;
 	private final List<RemoteCommandListener> remoteCommandListeners;
+	private final ConcurrentHashMap<String, ConcurrentIntMap<List<RemoteCommandListener>>> portRemoteCommandListeners;
+	private final Map<Integer, PortState> portStates = new ConcurrentHashMap<>();
+	private final HashedWheelTimer timer = HashedWheelTimer.getShared();
+	private final AtomicBoolean isExpireSweepScheduled = new AtomicBoolean(false);
+	private long defaultCommandTimeout = DEFAULT_COMMAND_TIMEOUT;
+	private volatile BatchSupport batchSupport = BatchSupport.UNKNOWN;
+
+	// batch chunks sent while the connection has not been probed yet, guarded by itself
+	private final List<List<CommandBatch.Part>> heldBatchChunks = new ArrayList<>();
+	private boolean isProbingBatchSupport = true;
 
 	public Commander(MessageTransport messageTransport) {
+		this(messageTransport, null);
+	}
+
+	/**
+	 * Creates commander that handles the received messages on given dispatcher instead of the transport reader thread.
+	 *
+	 * The messages and connection events of this commander are handled in the order they were received, the connection
+	 * events are delivered to all the listeners of the transport on the dispatcher.
+	 *
+	 * @param messageTransport transport to use
+	 * @param messageDispatcher dispatcher to hand the received messages off to, null to handle them on the reader
+	 */
+	public Commander(MessageTransport messageTransport, MessageDispatcher messageDispatcher) {
 		this.messageTransport = messageTransport;
-		this.commandPromises = new HashMap<>();
+		this.dispatcherLane = messageDispatcher != null ? messageDispatcher.createLane(messageTransport.getDescription()) : null;
+		this.commandPromises = new ConcurrentIntMap<>();
 		this.remoteCommandListeners = Collections.synchronizedList(new ArrayList<>());
+		this.portRemoteCommandListeners = new ConcurrentHashMap<>();
 
 		messageTransport.addEventListener(this);
+
+		// the listeners may make blocking calls so keep the connection events off the shared transport thread too
+		if (dispatcherLane != null) {
+			messageTransport.setEventExecutor(this::dispatchRequired);
+		}
 	}
 
 	public boolean connect(int connectionTimeout) {
@@ -61,23 +127,73 @@ public class Commander implements MessageTransport.EventListener {
 		messageTransport.close();
 	}
 
+	public long getDefaultCommandTimeout() {
+		return defaultCommandTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for a response before failing the command future with {@link CommandTimeoutException}.
+	 *
+	 * @param defaultCommandTimeout timeout in milliseconds, zero or less to wait forever
+	 */
+	public void setDefaultCommandTimeout(long defaultCommandTimeout) {
+		this.defaultCommandTimeout = defaultCommandTimeout;
+	}
+
+	public int getPendingCommandCount() {
+		return commandPromises.size();
+	}
+
 	public void addRemoteCommandListener(RemoteCommandListener listener) {
 		synchronized (remoteCommandListeners) {
 			remoteCommandListeners.add(listener);
 		}
 	}
 
+	/**
+	 * Adds a listener that only receives the remote commands with given name and port id as the first argument.
+	 *
+	 * The routed listeners are looked up by event name and port id so an event is not offered to every port.
+	 *
+	 * @param eventName name of the remote command to listen for
+	 * @param portId port id the first argument of the command must match
+	 * @param listener listener to call
+	 */
+	public void addRemoteCommandListener(String eventName, int portId, RemoteCommandListener listener) {
+		ConcurrentIntMap<List<RemoteCommandListener>> portListeners = portRemoteCommandListeners.computeIfAbsent(
+				eventName,
+				key -> new ConcurrentIntMap<>()
+		);
+
+		synchronized (portListeners) {
+			List<RemoteCommandListener> listeners = portListeners.get(portId);
+
+			if (listeners == null) {
+				listeners = new CopyOnWriteArrayList<>();
+				portListeners.put(portId, listeners);
+			}
+
+			listeners.add(listener);
+		}
+	}
+
 	public CompletableFuture<Commander.CommandResponse> sendCommand(String name, Object... arguments) {
 		Command command = new Command(messageTransport.getNextMessageId(), name, arguments);
 
 		return sendCommand(command);
 	}
 
+	public CommandBatch createBatch() {
+		return new CommandBatch(this);
+	}
+
 	public CompletableFuture<CommandResponse> sendCommand(Command command) {
-		String message = command.toString();
+		return sendCommand(command, defaultCommandTimeout);
+	}
 
+	public CompletableFuture<CommandResponse> sendCommand(Command command, long timeout) {
 		if (!messageTransport.isConnected()) {
-			log.warn("sending message '{}' to {} requested but message transport is not connected", message, messageTransport.getDescription());
+			log.warn("sending message '{}' to {} requested but message transport is not connected", command, messageTransport.getDescription());
 
 			CompletableFuture<CommandResponse> promise = new CompletableFuture<>();
 			promise.cancel(false);
@@ -87,13 +203,22 @@ public class Commander implements MessageTransport.EventListener {
 
 		CompletableFuture<CommandResponse> promise = new CompletableFuture<>();
 		CommandResponse commandResponse = new CommandResponse(command);
-		CommandPromise commandPromise = new CommandPromise(commandResponse, promise);
+		CommandPromise commandPromise = new CommandPromise(commandResponse, promise, timeout);
 
 		commandPromises.put(command.id, commandPromise);
 
-		log.debug("< {}", message);
+		if (timeout > 0) {
+			scheduleExpireSweep();
+		}
+
+		log.debug("< {}", command);
+
+		StringBuilder frame = frameBuffer.get();
+		frame.setLength(0);
+
+		command.encode(frame).append('\n');
 
-		messageTransport.sendMessage("%s\n", message);
+		messageTransport.sendRawMessage(frame);
 
 		return promise;
 	}
@@ -106,15 +231,90 @@ public class Commander implements MessageTransport.EventListener {
 	@Override
 	public void onOpen(boolean isFirstConnect) {
 		log.debug("{} to socket", isFirstConnect ? "connected" : "reconnected");
+
+		probeBatchSupport();
+
+		// the batch is held until the support is known like the setup batches the listeners send after this
+		if (!isFirstConnect) {
+			restorePortStates();
+		}
 	}
 
 	@Override
 	public void onClose(boolean isPlanned) {
 		log.debug("socket connection closed");
+
+		// runs in order with the messages already as the connection events are delivered on the dispatcher lane, so
+		// handling it right away keeps it from running after the next open
+		failPendingCommands(new CancellationException("transport to " + messageTransport.getDescription() + " was closed"));
+
+		// the firmware may have been updated by the time the connection is back
+		releaseHeldBatchChunks(BatchSupport.UNKNOWN, true);
+
+		// the ports may be reset by the time the connection is back
+		for (PortState portState : portStates.values()) {
+			portState.invalidate();
+		}
 	}
 
 	@Override
 	public void onMessageReceived(String message) {
+		if (isReplaceable(message)) {
+			dispatch(() -> handleMessage(message));
+		} else {
+			dispatchRequired(() -> handleMessage(message));
+		}
+	}
+
+	public int getQueuedMessageCount() {
+		return dispatcherLane != null ? dispatcherLane.getQueueDepth() : 0;
+	}
+
+	// a message is dropped when the lane is full so a slow commander never blocks the shared reader
+	private void dispatch(Runnable task) {
+		if (dispatcherLane == null || !dispatcherLane.isRunning()) {
+			task.run();
+
+			return;
+		}
+
+		dispatcherLane.submit(task);
+	}
+
+	// connection events, responses and the events that change state are never dropped
+	private void dispatchRequired(Runnable task) {
+		if (dispatcherLane == null || !dispatcherLane.submitRequired(task)) {
+			task.run();
+		}
+	}
+
+	// checks the raw message so the shared reader does not need to parse it
+	private boolean isReplaceable(String message) {
+		for (String prefix : REPLACEABLE_EVENT_PREFIXES) {
+			if (message.startsWith(prefix)) {
+				return true;
+			}
+		}
+
+		int idEndIndex = message.indexOf(':');
+
+		if (idEndIndex == -1) {
+			return true;
+		}
+
+		int id;
+
+		try {
+			id = Integer.parseInt(message.substring(0, idEndIndex));
+		} catch (NumberFormatException e) {
+			return true;
+		}
+
+		// responses nothing is waiting for anymore and invalid messages are ignored anyway
+		return id != 0 && !commandPromises.containsKey(id);
+	}
+
+	private void handleMessage(String message) {
 		Command responseCommand;
 
 		try {
@@ -141,6 +341,231 @@ public class Commander implements MessageTransport.EventListener {
 		}
 	}
 
+	/**
+	 * Completes all the commands still waiting for a response exceptionally with given cause.
+	 *
+	 * @param cause exception to complete the pending futures with
+	 * @return number of failed commands
+	 */
+	public int failPendingCommands(Throwable cause) {
+		List<CommandPromise> failedCommandPromises = commandPromises.removeAll();
+		int failedCount = failedCommandPromises.size();
+
+		for (CommandPromise commandPromise : failedCommandPromises) {
+			commandPromise.promise.completeExceptionally(cause);
+		}
+
+		if (failedCount > 0) {
+			log.debug("failed {} pending command(s) to {} ({})", failedCount, messageTransport.getDescription(), cause.getMessage());
+		}
+
+		return failedCount;
+	}
+
+	/**
+	 * Sends the requested configuration of all the ports that is not acknowledged, without waiting for the responses.
+	 *
+	 * @return promise resolved once all the ports have responded
+	 */
+	public CompletableFuture<Void> restorePortStates() {
+		CommandBatch batch = createBatch();
+
+		for (PortState portState : portStates.values()) {
+			portState.restore(batch);
+		}
+
+		if (batch.size() > 0) {
+			log.debug("restoring the state of {} port(s) of {} with {} command(s)", portStates.size(), messageTransport.getDescription(), batch.size());
+		}
+
+		return batch.send();
+	}
+
+	// number of port commands that were not sent as the port was already in the requested state
+	public long getPortCacheHitCount() {
+		return portStates.values().stream().mapToLong(PortState::getHitCount).sum();
+	}
+
+	public long getPortCacheMissCount() {
+		return portStates.values().stream().mapToLong(PortState::getMissCount).sum();
+	}
+
+	CompletableFuture<Void> sendBatch(List<CommandBatch.Part> parts) {
+		CompletableFuture<?>[] promises = new CompletableFuture<?>[parts.size()];
+
+		for (int i = 0; i < parts.size(); i++) {
+			promises[i] = parts.get(i).promise;
+		}
+
+		for (int start = 0; start < parts.size(); start += MAX_BATCH_SIZE) {
+			sendBatchChunk(parts.subList(start, Math.min(start + MAX_BATCH_SIZE, parts.size())));
+		}
+
+		return CompletableFuture.allOf(promises);
+	}
+
+	private void sendBatchChunk(List<CommandBatch.Part> parts) {
+		if (parts.size() == 1 || !canBatch(parts)) {
+			sendPipelined(parts);
+
+			return;
+		}
+
+		// sent once the probe has answered so firmware that would ignore the batch never makes it wait for the timeout,
+		// the connection may already be open before the probe is sent
+		synchronized (heldBatchChunks) {
+			if (isProbingBatchSupport && messageTransport.isConnected()) {
+				heldBatchChunks.add(parts);
+
+				return;
+			}
+		}
+
+		if (batchSupport != BatchSupport.SUPPORTED) {
+			sendPipelined(parts);
+
+			return;
+		}
+
+		// each part is sent as a single argument of the batch command, the delimiters get escaped
+		Object[] partCommands = new Object[parts.size()];
+
+		for (int i = 0; i < parts.size(); i++) {
+			CommandBatch.Part part = parts.get(i);
+			StringBuilder partCommand = new StringBuilder(part.name);
+
+			for (Object argument : part.arguments) {
+				partCommand.append(Command.DELIMITER).append(argument);
+			}
+
+			partCommands[i] = partCommand.toString();
+		}
+
+		sendCommand(COMMAND_BATCH, partCommands).whenComplete((commandResponse, e) -> {
+			if (e != null) {
+				for (CommandBatch.Part part : parts) {
+					part.promise.completeExceptionally(unwrap(e));
+				}
+
+				return;
+			}
+
+			if (!commandResponse.response.name.equals(RESPONSE_OK)) {
+				if (isUnsupportedCommand(commandResponse.response)) {
+					log.info("{} no longer supports batched commands, sending them one by one", messageTransport.getDescription());
+
+					batchSupport = BatchSupport.UNSUPPORTED;
+				}
+
+				// none of the parts were run
+				sendPipelined(parts);
+
+				return;
+			}
+
+			for (int i = 0; i < parts.size(); i++) {
+				completeBatchPart(parts.get(i), commandResponse.response, i);
+			}
+		});
+	}
+
+	// a small batch is sent once per connection as old firmware answers it with an error instead of running it
+	private void probeBatchSupport() {
+		sendCommand(COMMAND_BATCH, COMMAND_PING).whenComplete((commandResponse, e) -> {
+			BatchSupport support = BatchSupport.UNKNOWN;
+
+			if (e != null) {
+				log.debug("probing batch support of {} failed, sending batched commands one by one ({} - {})", messageTransport.getDescription(), unwrap(e).getClass().getSimpleName(), unwrap(e).getMessage());
+			} else if (commandResponse.response.name.equals(RESPONSE_OK)) {
+				support = BatchSupport.SUPPORTED;
+			} else if (isUnsupportedCommand(commandResponse.response)) {
+				log.info("{} does not support batched commands, sending them one by one", messageTransport.getDescription());
+
+				support = BatchSupport.UNSUPPORTED;
+			}
+
+			releaseHeldBatchChunks(support, false);
+		});
+	}
+
+	// sent in the order they were held, one by one unless the firmware is known to support batches
+	private void releaseHeldBatchChunks(BatchSupport support, boolean isProbing) {
+		List<List<CommandBatch.Part>> chunks;
+
+		synchronized (heldBatchChunks) {
+			batchSupport = support;
+			isProbingBatchSupport = isProbing;
+
+			chunks = new ArrayList<>(heldBatchChunks);
+			heldBatchChunks.clear();
+		}
+
+		// the chunks held when the connection closes fail right away as there is nothing to send them to
+		for (List<CommandBatch.Part> chunk : chunks) {
+			if (isProbing) {
+				sendPipelined(chunk);
+			} else {
+				sendBatchChunk(chunk);
+			}
+		}
+	}
+
+	private static boolean isUnsupportedCommand(Command response) {
+		return response.name.equals(RESPONSE_ERROR) && response.getArgumentCount() >= 1 && response.getString(0).contains(ERROR_UNSUPPORTED_COMMAND);
+	}
+
+	private void completeBatchPart(CommandBatch.Part part, Command batchResponse, int index) {
+		Command request = new Command(0, part.name, part.arguments);
+
+		if (index >= batchResponse.getArgumentCount()) {
+			part.promise.completeExceptionally(new IllegalStateException("batch response from " + messageTransport.getDescription() + " is missing the response to '" + request + "'"));
+
+			return;
+		}
+
+		try {
+			// the parts are responses without the request id
+			Command response = Command.parse("0" + Command.DELIMITER + batchResponse.getString(index));
+
+			part.promise.complete(new CommandResponse(request, response));
+		} catch (Exception e) {
+			part.promise.completeExceptionally(e);
+		}
+	}
+
+	private void sendPipelined(List<CommandBatch.Part> parts) {
+		for (CommandBatch.Part part : parts) {
+			sendCommand(part.name, part.arguments).whenComplete((commandResponse, e) -> {
+				if (e != null) {
+					part.promise.completeExceptionally(unwrap(e));
+				} else {
+					part.promise.complete(commandResponse);
+				}
+			});
+		}
+	}
+
+	// the parts are split on the delimiter by the firmware so their arguments cannot contain it
+	private static boolean canBatch(List<CommandBatch.Part> parts) {
+		for (CommandBatch.Part part : parts) {
+			for (Object argument : part.arguments) {
+				if (argument.toString().indexOf(Command.DELIMITER) != -1) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+	}
+
+	PortState getPortState(int portId) {
+		return portStates.computeIfAbsent(portId, key -> new PortState(this, portId));
+	}
+
 	public MessageTransport getMessageTransport() {
 		return messageTransport;
 	}
@@ -154,7 +579,8 @@ public class Commander implements MessageTransport.EventListener {
 			handleSpecialCommand(responseCommand);
 		}
 
-		CommandPromise commandPromise = getCommandPromiseById(responseCommand.id);
+		// single probe lookup and remove so concurrent sweeps and responses complete each command only once
+		CommandPromise commandPromise = commandPromises.remove(responseCommand.id);
 
 		if (commandPromise == null) {
 			return;
@@ -171,7 +597,38 @@ public class Commander implements MessageTransport.EventListener {
 
 		commandPromise.commandResponse.response = responseCommand;
 		commandPromise.promise.complete(commandPromise.commandResponse);
-		commandPromises.remove(responseCommand.id);
+	}
+
+	private void scheduleExpireSweep() {
+		if (!isExpireSweepScheduled.compareAndSet(false, true)) {
+			return;
+		}
+
+		timer.schedule(this::expirePendingCommands, EXPIRE_SWEEP_INTERVAL);
+	}
+
+	// a single periodic sweep per commander expires all the overdue commands at once instead of a timer per command
+	private void expirePendingCommands() {
+		isExpireSweepScheduled.set(false);
+
+		long currentTime = Clock.MONOTONIC.now();
+		List<CommandPromise> expiredCommandPromises = commandPromises.removeIf(
+				commandPromise -> commandPromise.deadline <= currentTime
+		);
+
+		for (CommandPromise commandPromise : expiredCommandPromises) {
+			Command command = commandPromise.commandResponse.command;
+
+			log.warn("command #{} '{}' to {} timed out after {}ms", command.id, command.toString(), messageTransport.getDescription(), commandPromise.timeout);
+
+			commandPromise.promise.completeExceptionally(
+					new CommandTimeoutException(command, messageTransport.getDescription(), commandPromise.timeout)
+			);
+		}
+
+		if (!commandPromises.isEmpty()) {
+			scheduleExpireSweep();
+		}
 	}
 
 	private void handleSpecialCommand(Command responseCommand) {
@@ -180,14 +637,36 @@ public class Commander implements MessageTransport.EventListener {
 				listener.handleRemoteCommand(responseCommand);
 			}
 		}
+
+		dispatchPortCommand(responseCommand);
 	}
 
-	private CommandPromise getCommandPromiseById(int id) {
-		if (!commandPromises.containsKey(id)) {
-			return null;
+	private void dispatchPortCommand(Command responseCommand) {
+		ConcurrentIntMap<List<RemoteCommandListener>> portListeners = portRemoteCommandListeners.get(responseCommand.name);
+
+		if (portListeners == null || responseCommand.getArgumentCount() == 0) {
+			return;
+		}
+
+		int portId;
+
+		try {
+			portId = responseCommand.getInt(0);
+		} catch (NumberFormatException e) {
+			log.warn("got remote command '{}' from {} with invalid port id", responseCommand, messageTransport.getDescription());
+
+			return;
 		}
 
-		return commandPromises.get(id);
+		List<RemoteCommandListener> listeners = portListeners.get(portId);
+
+		if (listeners == null) {
+			return;
+		}
+
+		for (RemoteCommandListener listener : listeners) {
+			listener.handleRemoteCommand(responseCommand);
+		}
 	}
 
 }
@@ -0,0 +1,294 @@
+package com.stagnationlab.etherio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent hash table keyed by primitive int.
+ *
+ * The keys are spread over lock striped segments, each an open addressing table with linear probing and backward
+ * shift deletion, so there are no boxed keys, no per entry nodes and no tombstones. Lookup and removal are done in a
+ * single probe sequence.
+ *
+ * @param <V> value type
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+public class ConcurrentIntMap<V> {
+
+	private static final int SEGMENT_COUNT = 16;
+	private static final int SEGMENT_SHIFT = 28;
+	private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+
+	private final Segment<V>[] segments;
+
+	@SuppressWarnings("unchecked")
+	public ConcurrentIntMap() {
+		segments = (Segment<V>[])new Segment<?>[SEGMENT_COUNT];
+
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment<>(DEFAULT_SEGMENT_CAPACITY);
+		}
+	}
+
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null values are not supported");
+		}
+
+		int hash = hash(key);
+
+		return segmentFor(hash).put(key, hash, value);
+	}
+
+	public V get(int key) {
+		int hash = hash(key);
+
+		return segmentFor(hash).get(key, hash);
+	}
+
+	public V remove(int key) {
+		int hash = hash(key);
+
+		return segmentFor(hash).remove(key, hash, null);
+	}
+
+	public boolean remove(int key, V value) {
+		int hash = hash(key);
+
+		return segmentFor(hash).remove(key, hash, value) != null;
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	public int size() {
+		int size = 0;
+
+		for (Segment<V> segment : segments) {
+			size += segment.size;
+		}
+
+		return size;
+	}
+
+	public boolean isEmpty() {
+		for (Segment<V> segment : segments) {
+			if (segment.size > 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes all the values matching given predicate.
+	 *
+	 * The predicate is evaluated while holding the segment lock so it should be cheap and must not access the map.
+	 *
+	 * @param predicate predicate to test the values with
+	 * @return removed values
+	 */
+	public List<V> removeIf(Predicate<V> predicate) {
+		List<V> removedValues = new ArrayList<>();
+
+		for (Segment<V> segment : segments) {
+			segment.removeIf(predicate, removedValues);
+		}
+
+		return removedValues;
+	}
+
+	public List<V> removeAll() {
+		return removeIf(value -> true);
+	}
+
+	public List<V> values() {
+		List<V> values = new ArrayList<>();
+
+		for (Segment<V> segment : segments) {
+			segment.collectValues(values);
+		}
+
+		return values;
+	}
+
+	private Segment<V> segmentFor(int hash) {
+		return segments[hash >>> SEGMENT_SHIFT];
+	}
+
+	// murmur3 finalizer, spreads sequential message ids over all the segments and slots
+	private static int hash(int key) {
+		int hash = key;
+
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+
+		return hash;
+	}
+
+	private static class Segment<V> {
+		int[] keys;
+		Object[] values;
+		int mask;
+		volatile int size;
+
+		Segment(int capacity) {
+			keys = new int[capacity];
+			values = new Object[capacity];
+			mask = capacity - 1;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V put(int key, int hash, V value) {
+			int index = hash & mask;
+
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					V previousValue = (V)values[index];
+					values[index] = value;
+
+					return previousValue;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			keys[index] = key;
+			values[index] = value;
+			size++;
+
+			// keep the load factor at or below one half so probe sequences stay short
+			if (size * 2 > values.length) {
+				resize(values.length * 2);
+			}
+
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(int key, int hash) {
+			int index = hash & mask;
+
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					return (V)values[index];
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V remove(int key, int hash, V expectedValue) {
+			int index = hash & mask;
+
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					V value = (V)values[index];
+
+					if (expectedValue != null && value != expectedValue) {
+						return null;
+					}
+
+					removeAt(index);
+
+					return value;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void removeIf(Predicate<V> predicate, List<V> removedValues) {
+			int index = 0;
+
+			while (index < values.length) {
+				V value = (V)values[index];
+
+				// removing shifts a following entry into this slot so check the same slot again
+				if (value != null && predicate.test(value)) {
+					removeAt(index);
+					removedValues.add(value);
+				} else {
+					index++;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void collectValues(List<V> result) {
+			for (Object value : values) {
+				if (value != null) {
+					result.add((V)value);
+				}
+			}
+		}
+
+		private void removeAt(int index) {
+			values[index] = null;
+			size--;
+
+			// shift back the following entries of the probe sequence so no tombstones are needed
+			int emptyIndex = index;
+			int currentIndex = index;
+
+			while (true) {
+				currentIndex = (currentIndex + 1) & mask;
+
+				if (values[currentIndex] == null) {
+					return;
+				}
+
+				int idealIndex = hash(keys[currentIndex]) & mask;
+
+				boolean isBetween = emptyIndex <= currentIndex
+						? emptyIndex < idealIndex && idealIndex <= currentIndex
+						: emptyIndex < idealIndex || idealIndex <= currentIndex;
+
+				if (isBetween) {
+					continue;
+				}
+
+				keys[emptyIndex] = keys[currentIndex];
+				values[emptyIndex] = values[currentIndex];
+				values[currentIndex] = null;
+				emptyIndex = currentIndex;
+			}
+		}
+
+		private void resize(int capacity) {
+			int[] oldKeys = keys;
+			Object[] oldValues = values;
+
+			keys = new int[capacity];
+			values = new Object[capacity];
+			mask = capacity - 1;
+
+			for (int i = 0; i < oldValues.length; i++) {
+				if (oldValues[i] == null) {
+					continue;
+				}
+
+				int index = hash(oldKeys[i]) & mask;
+
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+}
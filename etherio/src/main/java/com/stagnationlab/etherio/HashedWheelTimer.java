@@ -0,0 +1,362 @@
+package com.stagnationlab.etherio;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Timer that keeps scheduled timeouts in a wheel of buckets, one bucket per tick.
+ *
+ * Scheduling and cancelling are O(1) and do not create any threads, a single worker thread advances the wheel and
+ * runs the expired tasks. The tasks are executed on the worker thread so they should be short, blocking work should
+ * be handed off to an executor.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public class HashedWheelTimer {
+
+	public interface Timeout {
+		boolean cancel();
+		boolean isCancelled();
+		boolean isExpired();
+	}
+
+	private static final int DEFAULT_TICK_DURATION_MS = 10;
+	private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_EXPIRED = 2;
+
+	private static HashedWheelTimer sharedInstance;
+
+	private final String name;
+	private final long tickDurationNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Entry> addedEntries = new ConcurrentLinkedQueue<>();
+	private final Queue<Entry> cancelledEntries = new ConcurrentLinkedQueue<>();
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong firedCount = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+	private Thread workerThread;
+	private long startTime;
+	private long tick = 0;
+	private volatile boolean isRunning = false;
+
+	public HashedWheelTimer(String name, long tickDurationMs, int ticksPerWheel) {
+		if (tickDurationMs <= 0) {
+			throw new IllegalArgumentException("tick duration must be positive");
+		}
+
+		this.name = name;
+		this.tickDurationNanos = tickDurationMs * 1000000L;
+
+		// use a power of two wheel size so the bucket can be found with a mask
+		int wheelSize = 1;
+
+		while (wheelSize < ticksPerWheel) {
+			wheelSize <<= 1;
+		}
+
+		wheel = new Bucket[wheelSize];
+		mask = wheelSize - 1;
+
+		for (int i = 0; i < wheelSize; i++) {
+			wheel[i] = new Bucket();
+		}
+	}
+
+	public HashedWheelTimer(String name) {
+		this(name, DEFAULT_TICK_DURATION_MS, DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	public static synchronized HashedWheelTimer getShared() {
+		if (sharedInstance == null) {
+			sharedInstance = new HashedWheelTimer("HashedWheelTimer");
+		}
+
+		return sharedInstance;
+	}
+
+	public Timeout schedule(Runnable task, long delayMs) {
+		start();
+
+		long deadline = System.nanoTime() - startTime + Math.max(delayMs, 0) * 1000000L;
+		Entry entry = new Entry(task, deadline);
+
+		addedEntries.add(entry);
+		scheduledCount.incrementAndGet();
+
+		return entry;
+	}
+
+	public synchronized void stop() {
+		if (!isRunning) {
+			return;
+		}
+
+		log.debug("stopping timer '{}'", name);
+
+		isRunning = false;
+		workerThread.interrupt();
+	}
+
+	public long getScheduledCount() {
+		return scheduledCount.get();
+	}
+
+	public long getFiredCount() {
+		return firedCount.get();
+	}
+
+	public long getCancelledCount() {
+		return cancelledCount.get();
+	}
+
+	public long getPendingCount() {
+		return scheduledCount.get() - firedCount.get() - cancelledCount.get();
+	}
+
+	private synchronized void start() {
+		if (isRunning) {
+			return;
+		}
+
+		log.debug("starting timer '{}'", name);
+
+		long currentTime = System.nanoTime();
+
+		// a restarted timer counts the ticks from zero again so the pending entries are moved to the new time base,
+		// the stopped worker is waited for first as it still owns the wheel
+		if (workerThread != null) {
+			joinStoppedWorker();
+			rebaseEntries(currentTime - startTime);
+		}
+
+		isRunning = true;
+		tick = 0;
+		startTime = currentTime;
+		workerThread = new Thread(this::run, name);
+		workerThread.setDaemon(true);
+		workerThread.start();
+	}
+
+	private void joinStoppedWorker() {
+		boolean isInterrupted = false;
+
+		while (workerThread.isAlive()) {
+			try {
+				workerThread.join();
+			} catch (InterruptedException e) {
+				isInterrupted = true;
+			}
+		}
+
+		if (isInterrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// entries already past their deadline expire on the first tick
+	private void rebaseEntries(long elapsedTime) {
+		for (Bucket bucket : wheel) {
+			Entry entry;
+
+			while ((entry = bucket.head) != null) {
+				bucket.remove(entry);
+
+				if (!entry.isCancelled()) {
+					addedEntries.add(entry);
+				}
+			}
+		}
+
+		for (Entry entry : addedEntries) {
+			entry.deadline = Math.max(entry.deadline - elapsedTime, 0);
+		}
+	}
+
+	private void run() {
+		while (isRunning) {
+			long tickDeadline = waitForNextTick();
+
+			if (tickDeadline < 0) {
+				continue;
+			}
+
+			removeCancelledEntries();
+			transferAddedEntries();
+
+			wheel[(int)(tick & mask)].expireEntries(tickDeadline);
+
+			tick++;
+		}
+
+		log.debug("timer '{}' stopped", name);
+	}
+
+	private long waitForNextTick() {
+		long tickDeadline = tickDurationNanos * (tick + 1);
+
+		while (true) {
+			long currentTime = System.nanoTime() - startTime;
+			long sleepTimeMs = (tickDeadline - currentTime + 999999) / 1000000;
+
+			if (sleepTimeMs <= 0) {
+				return currentTime;
+			}
+
+			try {
+				Thread.sleep(sleepTimeMs);
+			} catch (InterruptedException e) {
+				if (!isRunning) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	private void transferAddedEntries() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Entry entry = addedEntries.poll();
+
+			if (entry == null) {
+				return;
+			}
+
+			if (entry.state.get() == STATE_CANCELLED) {
+				continue;
+			}
+
+			long calculatedTick = entry.deadline / tickDurationNanos;
+
+			entry.remainingRounds = (calculatedTick - tick) / wheel.length;
+
+			// never schedule into the past, expire on the current tick instead
+			long targetTick = Math.max(calculatedTick, tick);
+
+			wheel[(int)(targetTick & mask)].add(entry);
+		}
+	}
+
+	private void removeCancelledEntries() {
+		Entry entry;
+
+		while ((entry = cancelledEntries.poll()) != null) {
+			if (entry.bucket != null) {
+				entry.bucket.remove(entry);
+			}
+		}
+	}
+
+	private class Entry implements Timeout {
+		final Runnable task;
+		long deadline;
+		final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+		long remainingRounds;
+		Bucket bucket;
+		Entry next;
+		Entry previous;
+
+		Entry(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public boolean cancel() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+				return false;
+			}
+
+			cancelledCount.incrementAndGet();
+			cancelledEntries.add(this);
+
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		@Override
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+
+		void expire() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+				return;
+			}
+
+			firedCount.incrementAndGet();
+
+			try {
+				task.run();
+			} catch (Exception e) {
+				log.warn("timer '{}' task failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+		}
+	}
+
+	// doubly linked list of entries so cancelled entries can be removed in constant time
+	private static class Bucket {
+		Entry head;
+		Entry tail;
+
+		void add(Entry entry) {
+			entry.bucket = this;
+
+			if (head == null) {
+				head = tail = entry;
+			} else {
+				tail.next = entry;
+				entry.previous = tail;
+				tail = entry;
+			}
+		}
+
+		void remove(Entry entry) {
+			if (entry.previous != null) {
+				entry.previous.next = entry.next;
+			} else {
+				head = entry.next;
+			}
+
+			if (entry.next != null) {
+				entry.next.previous = entry.previous;
+			} else {
+				tail = entry.previous;
+			}
+
+			entry.next = null;
+			entry.previous = null;
+			entry.bucket = null;
+		}
+
+		void expireEntries(long tickDeadline) {
+			Entry entry = head;
+
+			while (entry != null) {
+				Entry next = entry.next;
+
+				if (entry.remainingRounds <= 0 && entry.deadline <= tickDeadline) {
+					remove(entry);
+					entry.expire();
+				} else if (entry.isCancelled()) {
+					remove(entry);
+				} else {
+					entry.remainingRounds--;
+				}
+
+				entry = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.stagnationlab.etherio;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hands received messages off from the transport reader thread to a small pool of worker threads.
+ *
+ * Each commander gets its own lane, the tasks of a lane are run one at a time in submission order while different
+ * lanes are processed in parallel. Each lane queues a bounded number of tasks and submitting never blocks as the reader
+ * is shared by all the transports, when a lane is full its new tasks are dropped and counted so a slow lane only
+ * loses its own messages. The time a lane spends full is recorded as stall time.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public class MessageDispatcher {
+
+	public static final int DEFAULT_LANE_CAPACITY = 500;
+	public static final int DEFAULT_THREAD_COUNT = 2;
+
+	public class Lane {
+		private final String name;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger depth = new AtomicInteger();
+		private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+		private final AtomicLong droppedCount = new AtomicLong();
+		private final AtomicLong stallStartTime = new AtomicLong();
+
+		Lane(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getQueueDepth() {
+			return depth.get();
+		}
+
+		public long getDroppedCount() {
+			return droppedCount.get();
+		}
+
+		public boolean isRunning() {
+			return isRunning;
+		}
+
+		/**
+		 * Queues given task to be run after all the tasks previously submitted to this lane.
+		 *
+		 * Never blocks, the task is dropped when the lane is full.
+		 *
+		 * @param task task to run
+		 * @return whether the task was queued, false if the lane is full or the dispatcher has been shut down
+		 */
+		public boolean submit(Runnable task) {
+			if (!isRunning) {
+				log.warn("submitting task to lane '{}' of dispatcher '{}' requested but it has been shut down", name, MessageDispatcher.this.name);
+
+				return false;
+			}
+
+			if (!reserveCapacity()) {
+				return false;
+			}
+
+			enqueue(task);
+
+			return true;
+		}
+
+		/**
+		 * Queues given task even when the lane is full, for the few tasks that must not be lost like connection events.
+		 *
+		 * @param task task to run
+		 * @return whether the task was queued, false if the dispatcher has been shut down
+		 */
+		public boolean submitRequired(Runnable task) {
+			if (!isRunning) {
+				return false;
+			}
+
+			depth.incrementAndGet();
+			enqueue(task);
+
+			return true;
+		}
+
+		private boolean reserveCapacity() {
+			while (true) {
+				int currentDepth = depth.get();
+
+				if (currentDepth >= laneCapacity) {
+					drop();
+
+					return false;
+				}
+
+				if (depth.compareAndSet(currentDepth, currentDepth + 1)) {
+					return true;
+				}
+			}
+		}
+
+		private void drop() {
+			long dropped = droppedCount.incrementAndGet();
+
+			totalDroppedCount.incrementAndGet();
+
+			// the stall lasts until the lane has room again
+			if (stallStartTime.compareAndSet(0, System.nanoTime())) {
+				stallCount.incrementAndGet();
+			}
+
+			// avoid flooding the log while the lane stays full
+			if (dropped == 1 || dropped % 100 == 0) {
+				log.warn("lane '{}' of dispatcher '{}' is full ({} tasks), dropped task ({} dropped in total)", name, MessageDispatcher.this.name, laneCapacity, dropped);
+			}
+		}
+
+		private void enqueue(Runnable task) {
+			tasks.add(task);
+			queueDepth.incrementAndGet();
+			submittedCount.incrementAndGet();
+
+			trackMaxQueueDepth();
+			scheduleDrain();
+		}
+
+		private void scheduleDrain() {
+			if (!isScheduled.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				log.warn("dispatcher '{}' rejected lane '{}' tasks, it has been shut down", MessageDispatcher.this.name, name);
+
+				isScheduled.set(false);
+			}
+		}
+
+		private void drain() {
+			Runnable task;
+
+			// run a limited batch so busy lanes do not starve the others
+			for (int i = 0; i < MAX_TASKS_PER_DRAIN && (task = tasks.poll()) != null; i++) {
+				depth.decrementAndGet();
+				queueDepth.decrementAndGet();
+
+				endStall();
+
+				try {
+					task.run();
+				} catch (Exception e) {
+					log.warn("running task of lane '{}' failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage(), e);
+				}
+
+				completedCount.incrementAndGet();
+			}
+
+			isScheduled.set(false);
+
+			// tasks added between the last poll and clearing the flag would otherwise be left behind
+			if (!tasks.isEmpty()) {
+				scheduleDrain();
+			}
+		}
+
+		private void endStall() {
+			if (stallStartTime.get() == 0) {
+				return;
+			}
+
+			long startTime = stallStartTime.getAndSet(0);
+
+			if (startTime == 0) {
+				return;
+			}
+
+			long stallTime = (System.nanoTime() - startTime) / 1000000L;
+
+			totalStallTime.addAndGet(stallTime);
+			maxStallTime.accumulateAndGet(stallTime, Math::max);
+
+			log.debug("lane '{}' of dispatcher '{}' has room again after {}ms ({} dropped in total)", name, MessageDispatcher.this.name, stallTime, droppedCount.get());
+		}
+	}
+
+	private static final int MAX_TASKS_PER_DRAIN = 64;
+
+	private final String name;
+	private final int laneCapacity;
+	private final ExecutorService executor;
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong totalDroppedCount = new AtomicLong();
+	private final AtomicLong stallCount = new AtomicLong();
+	private final AtomicLong totalStallTime = new AtomicLong();
+	private final AtomicLong maxStallTime = new AtomicLong();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private volatile boolean isRunning = true;
+
+	/**
+	 * Creates dispatcher.
+	 *
+	 * @param name name of the dispatcher and prefix of its thread names
+	 * @param laneCapacity maximum number of queued tasks of each lane
+	 * @param threadCount number of worker threads
+	 */
+	public MessageDispatcher(String name, int laneCapacity, int threadCount) {
+		AtomicInteger threadCounter = new AtomicInteger();
+
+		this.name = name;
+		this.laneCapacity = laneCapacity;
+		this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threadCounter.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		});
+	}
+
+	public MessageDispatcher(String name) {
+		this(name, DEFAULT_LANE_CAPACITY, DEFAULT_THREAD_COUNT);
+	}
+
+	public Lane createLane(String name) {
+		return new Lane(name);
+	}
+
+	public void shutdown() {
+		if (!isRunning) {
+			return;
+		}
+
+		log.debug("shutting down dispatcher '{}' ({} queued tasks)", name, getQueueDepth());
+
+		isRunning = false;
+		executor.shutdown();
+
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				log.warn("dispatcher '{}' did not complete the queued tasks in time", name);
+
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			log.warn("waiting for dispatcher '{}' to complete failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage());
+
+			executor.shutdownNow();
+		}
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	public int getLaneCapacity() {
+		return laneCapacity;
+	}
+
+	// number of tasks queued in all the lanes
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	// number of tasks dropped as their lane was full
+	public long getDroppedCount() {
+		return totalDroppedCount.get();
+	}
+
+	// number of times a lane filled up, the stall time is how long the lanes stayed full
+	public long getStallCount() {
+		return stallCount.get();
+	}
+
+	public long getTotalStallTime() {
+		return totalStallTime.get();
+	}
+
+	public long getMaxStallTime() {
+		return maxStallTime.get();
+	}
+
+	private void trackMaxQueueDepth() {
+		maxQueueDepth.accumulateAndGet(getQueueDepth(), Math::max);
+	}
+}
@@ -1,5 +1,7 @@
 package com.stagnationlab.etherio;
 
+import java.util.concurrent.Executor;
+
 @SuppressWarnings({"WeakerAccess", "unused"})
 public interface MessageTransport {
 
@@ -11,6 +13,11 @@ public interface MessageTransport {
 	    default void onConnectionFailed(Exception e, boolean wasEverOpened) {}
     }
 
+	interface PingStrategy {
+		String getPingMessage();
+		boolean isPingResponse(String message);
+	}
+
     String getDescription();
 
 	boolean connect(int connectionTimeout);
@@ -19,8 +26,16 @@ public interface MessageTransport {
 
     void addEventListener(EventListener eventListener);
 
+    // connecting, open and close events are delivered on given executor instead of the transport thread when supported
+    default void setEventExecutor(Executor eventExecutor) {}
+
     boolean sendMessage(String format, Object...arguments);
 
+    // sends the message as is, skipping the formatting
+    default boolean sendRawMessage(CharSequence message) {
+        return sendMessage("%s", message);
+    }
+
     int getMessageCount();
 
     String getMessage();
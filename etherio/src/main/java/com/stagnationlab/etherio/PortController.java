@@ -55,20 +55,64 @@ public class PortController implements Commander.RemoteCommandListener {
     private static final String EVENT_INTERRUPT_FALL = "INTERRUPT_FALL";
     private static final String EVENT_ANALOG = "ANALOG_IN";
     private static final String EVENT_CAPABILITY = "CAPABILITY";
+    private static final String[] HANDLED_EVENTS = {
+            EVENT_INTERRUPT_CHANGE,
+            EVENT_INTERRUPT_RISE,
+            EVENT_INTERRUPT_FALL,
+            EVENT_ANALOG,
+            EVENT_CAPABILITY,
+    };
 
     private Commander commander;
     private final List<PortEventListener> portEventListeners;
 
     private final int id;
-    private PortMode portMode = PortMode.UNUSED;
-    private PullMode pullMode = PullMode.NONE;
+    private final PortState portState;
+    private final CommandBatch batch;
+
+    // controller keeping the modes, the batched views share them with the controller they were created from
+    private final PortController owner;
+    private volatile PortMode portMode = PortMode.UNUSED;
+    private volatile PullMode pullMode = PullMode.NONE;
 
     public PortController(int id, Commander commander) {
         this.id = id;
         this.commander = commander;
         this.portEventListeners = new ArrayList<>();
+        this.portState = commander.getPortState(id);
+        this.batch = null;
+        this.owner = this;
 
-        commander.addRemoteCommandListener(this);
+        // the commander routes only the events of this port to it
+        for (String eventName : HANDLED_EVENTS) {
+            commander.addRemoteCommandListener(eventName, id, this);
+        }
+    }
+
+    // view of given port controller that adds its commands to a batch instead of sending them
+    private PortController(PortController portController, CommandBatch batch) {
+        this.id = portController.id;
+        this.commander = portController.commander;
+        this.portEventListeners = portController.portEventListeners;
+        this.portState = portController.portState;
+        this.batch = batch;
+        this.owner = portController.owner;
+    }
+
+    /**
+     * Returns a port controller of the same port that adds its commands to given batch instead of sending them.
+     *
+     * The commands are sent along with the rest of the batch, the listeners are shared with this controller.
+     *
+     * @param batch batch to add the commands to
+     * @return port controller using the batch
+     */
+    public PortController batched(CommandBatch batch) {
+        if (batch.getCommander() != commander) {
+            throw new IllegalArgumentException("batch of port " + id + " must be created by the same commander");
+        }
+
+        return new PortController(this, batch);
     }
 
     public Commander getCommander() {
@@ -84,21 +128,22 @@ public class PortController implements Commander.RemoteCommandListener {
     }
 
     public PortMode getPortMode() {
-        return portMode;
+        return owner.portMode;
     }
 
     public CompletableFuture<Commander.CommandResponse> setPortMode(PortMode portMode) {
-        return sendPortCommand(
+        owner.portMode = portMode;
+
+        return portState.request(
+                batch,
+                portState.mode,
                 Action.MODE,
                 portMode.name()
         );
     }
 
     public CompletableFuture<Commander.CommandResponse> setPortMode(PortMode portMode, PortEventListener listener) {
-        CompletableFuture<Commander.CommandResponse> result = sendPortCommand(
-                Action.MODE,
-                portMode.name()
-        );
+        CompletableFuture<Commander.CommandResponse> result = setPortMode(portMode);
 
         addEventListener(listener);
 
@@ -106,11 +151,15 @@ public class PortController implements Commander.RemoteCommandListener {
     }
 
     public PullMode getPullMode() {
-        return pullMode;
+        return owner.pullMode;
     }
 
     public CompletableFuture<Commander.CommandResponse> setPullMode(PullMode pullMode) {
-        return sendPortCommand(
+        owner.pullMode = pullMode;
+
+        return portState.request(
+                batch,
+                portState.pull,
                 Action.PULL,
                 pullMode.name()
         );
@@ -123,7 +172,9 @@ public class PortController implements Commander.RemoteCommandListener {
     }
 
     public CompletableFuture<Commander.CommandResponse> setDigitalValue(DigitalValue value) {
-        return sendPortCommand(
+        return portState.request(
+                batch,
+                portState.value,
                 Action.VALUE,
                 value.name()
         );
@@ -136,14 +187,18 @@ public class PortController implements Commander.RemoteCommandListener {
     }
 
     public CompletableFuture<Commander.CommandResponse> setAnalogValue(float dutyCycle) {
-        return sendPortCommand(
+        return portState.request(
+                batch,
+                portState.value,
                 Action.VALUE,
                 dutyCycle
         );
     }
 
     public CompletableFuture<Commander.CommandResponse> listenAnalogValueChange(float changeThreshold, int intervalMs) {
-        return sendPortCommand(
+        return portState.request(
+                batch,
+                portState.listen,
                 Action.LISTEN,
                 changeThreshold,
                 intervalMs
@@ -151,11 +206,7 @@ public class PortController implements Commander.RemoteCommandListener {
     }
 
     public CompletableFuture<Commander.CommandResponse> listenAnalogValueChange(float changeThreshold, int intervalMs, PortEventListener listener) {
-        CompletableFuture<Commander.CommandResponse> result = sendPortCommand(
-                Action.LISTEN,
-                changeThreshold,
-                intervalMs
-        );
+        CompletableFuture<Commander.CommandResponse> result = listenAnalogValueChange(changeThreshold, intervalMs);
 
         addEventListener(listener);
 
@@ -163,43 +214,36 @@ public class PortController implements Commander.RemoteCommandListener {
     }
 
     public CompletableFuture<Commander.CommandResponse> stopAnalogValueListener() {
-        return sendPortCommand(
+        return portState.request(
+                batch,
+                portState.listen,
                 Action.LISTEN,
                 VALUE_OFF
         );
     }
 
+    // number of commands to this port that were not sent as it was already in the requested state
+    public long getCacheHitCount() {
+        return portState.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return portState.getMissCount();
+    }
+
     public CompletableFuture<Commander.CommandResponse> sendPortCommand(Object... arguments) {
         List<Object> argumentList = new LinkedList<>(Arrays.asList(arguments));
         argumentList.add(0, id);
 
+        if (batch != null) {
+            return batch.add(COMMAND_PORT, argumentList.toArray());
+        }
+
         return commander.sendCommand(COMMAND_PORT, argumentList.toArray());
     }
 
     @Override
     public void handleRemoteCommand(Command command) {
-        String[] handledCommands = {
-                EVENT_INTERRUPT_CHANGE,
-                EVENT_INTERRUPT_RISE,
-                EVENT_INTERRUPT_FALL,
-                EVENT_ANALOG,
-                EVENT_CAPABILITY,
-        };
-
-        boolean isHandledCommand = Arrays.asList(handledCommands).contains(command.name);
-
-        // only handle predefined list of special commands
-        if (!isHandledCommand) {
-            return;
-        }
-
-        int portId = command.getInt(0);
-
-        // only handle special commands of given port
-        if (portId != id) {
-            return;
-        }
-
         // notify the event listeners
         for (PortEventListener listener : portEventListeners) {
             switch (command.name) {
@@ -0,0 +1,162 @@
+package com.stagnationlab.etherio;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requested and acknowledged configuration of a single port, shared by all the port controllers of the port.
+ *
+ * A command that would not change the acknowledged configuration is not sent, a command equal to the one still waiting
+ * for a response shares its response. The acknowledged configuration is forgotten when the connection is lost and the
+ * requested one can then be restored in one go.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+class PortState {
+
+	private static final String COMMAND_PORT = "port";
+	private static final String RESPONSE_OK = "OK";
+
+	static class Setting {
+		private Object[] requestedArguments;
+		private String acknowledgedKey;
+		private String pendingKey;
+		private CompletableFuture<Commander.CommandResponse> pendingPromise;
+	}
+
+	final Setting mode = new Setting();
+	final Setting pull = new Setting();
+	final Setting value = new Setting();
+	final Setting listen = new Setting();
+
+	// in the order the settings are restored in
+	private final Setting[] settings = { mode, pull, value, listen };
+
+	private final Commander commander;
+	private final int portId;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	PortState(Commander commander, int portId) {
+		this.commander = commander;
+		this.portId = portId;
+	}
+
+	/**
+	 * Requests given setting, sending the command only if it would change anything.
+	 *
+	 * @param batch batch to add the command to, null to send it right away
+	 * @param setting setting to change
+	 * @param arguments action and its arguments
+	 * @return promise of the response, already completed for the commands that were not sent
+	 */
+	CompletableFuture<Commander.CommandResponse> request(CommandBatch batch, Setting setting, Object... arguments) {
+		String key = buildKey(arguments);
+		CompletableFuture<Commander.CommandResponse> promise;
+
+		synchronized (this) {
+			setting.requestedArguments = arguments;
+
+			if (setting.pendingPromise != null ? key.equals(setting.pendingKey) : key.equals(setting.acknowledgedKey)) {
+				hitCount.incrementAndGet();
+
+				return setting.pendingPromise != null ? setting.pendingPromise : CompletableFuture.completedFuture(createAcknowledgedResponse(arguments));
+			}
+
+			missCount.incrementAndGet();
+
+			// changing the mode may reset the rest of the port configuration
+			if (setting == mode) {
+				pull.acknowledgedKey = null;
+				value.acknowledgedKey = null;
+				listen.acknowledgedKey = null;
+			}
+
+			promise = batch != null ? batch.add(COMMAND_PORT, withPortId(arguments)) : send(arguments);
+
+			setting.pendingKey = key;
+			setting.pendingPromise = promise;
+		}
+
+		CompletableFuture<Commander.CommandResponse> sentPromise = promise;
+
+		promise.whenComplete((commandResponse, e) -> handleResponse(setting, key, sentPromise, commandResponse, e));
+
+		return promise;
+	}
+
+	// forgets the acknowledged configuration, the port may have been reset
+	synchronized void invalidate() {
+		for (Setting setting : settings) {
+			setting.acknowledgedKey = null;
+		}
+	}
+
+	/**
+	 * Adds the requested configuration that is not acknowledged yet to given batch.
+	 *
+	 * @param batch batch to add the commands to
+	 */
+	void restore(CommandBatch batch) {
+		for (Setting setting : settings) {
+			Object[] arguments;
+
+			synchronized (this) {
+				arguments = setting.requestedArguments;
+			}
+
+			if (arguments != null) {
+				request(batch, setting, arguments);
+			}
+		}
+	}
+
+	long getHitCount() {
+		return hitCount.get();
+	}
+
+	long getMissCount() {
+		return missCount.get();
+	}
+
+	private CompletableFuture<Commander.CommandResponse> send(Object... arguments) {
+		return commander.sendCommand(COMMAND_PORT, withPortId(arguments));
+	}
+
+	private synchronized void handleResponse(Setting setting, String key, CompletableFuture<Commander.CommandResponse> promise, Commander.CommandResponse commandResponse, Throwable e) {
+		if (setting.pendingPromise == promise) {
+			setting.pendingKey = null;
+			setting.pendingPromise = null;
+		}
+
+		// the port handles its commands in order so the last response tells the current state
+		if (e == null && commandResponse.response.name.equals(RESPONSE_OK)) {
+			setting.acknowledgedKey = key;
+		} else {
+			setting.acknowledgedKey = null;
+		}
+	}
+
+	// response for a command that was not sent as the port is already in the requested state
+	private Commander.CommandResponse createAcknowledgedResponse(Object... arguments) {
+		return commander.new CommandResponse(new Command(0, COMMAND_PORT, withPortId(arguments)), new Command(0, RESPONSE_OK));
+	}
+
+	private Object[] withPortId(Object... arguments) {
+		Object[] commandArguments = new Object[arguments.length + 1];
+
+		commandArguments[0] = portId;
+		System.arraycopy(arguments, 0, commandArguments, 1, arguments.length);
+
+		return commandArguments;
+	}
+
+	private static String buildKey(Object... arguments) {
+		StringBuilder key = new StringBuilder();
+
+		for (Object argument : arguments) {
+			key.append(argument).append(':');
+		}
+
+		return key.toString();
+	}
+}
@@ -0,0 +1,686 @@
+package com.stagnationlab.etherio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Message transport built on a non-blocking socket channel.
+ *
+ * Does not use any threads of its own, all reading, writing, pinging and reconnecting is performed on the shared
+ * {@link SocketEventLoop} so a single thread can serve any number of controller boards. The connection events can be
+ * delivered to the listeners on another executor so slow listeners never hold up the other boards.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public class SelectorSocketClient implements MessageTransport, SocketEventLoop.ChannelHandler {
+
+	private static final int DEFAULT_RECONNECT_TIMEOUT = 5000;
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final int MAX_QUEUED_MESSAGES = 1000;
+
+	// how long the caller waits for the event loop on top of the connection timeout, in case it is busy or stopped
+	private static final int EVENT_LOOP_WAIT_TIMEOUT = 5000;
+
+	private final SocketEventLoop eventLoop;
+	private final List<EventListener> eventListeners = new CopyOnWriteArrayList<>();
+	private final Queue<String> inputQueue = new ArrayDeque<>();
+	private final Queue<ByteBuffer> outputQueue = new ConcurrentLinkedQueue<>();
+	private final Object writeLock = new Object();
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final AtomicInteger messageCounter = new AtomicInteger(1);
+	private volatile Executor eventExecutor = Runnable::run;
+
+	// runtime info, only modified from the event loop thread
+	private volatile SocketChannel channel;
+	private SelectionKey selectionKey;
+	private SocketEventLoop.ScheduledTask connectTimeout;
+	private SocketEventLoop.ScheduledTask sendPingTimeout;
+	private SocketEventLoop.ScheduledTask pingExpiredTimeout;
+	private SocketEventLoop.ScheduledTask reconnectTimeout;
+	private CompletableFuture<Boolean> connectResult;
+	private PingStrategy pingStrategy = null;
+	private byte[] lineBuffer = new byte[256];
+	private int lineLength = 0;
+	private int reconnectInterval = -1;
+	private boolean wasEverConnected = false;
+	private boolean isConnecting = false;
+	private boolean isFirstConnect = true;
+	private volatile boolean isPlannedClose = false;
+	private volatile boolean isOpen = false;
+	private long requestPingTime = 0;
+	private int pingInterval = 0;
+	private int lastConnectionTimeout = 0;
+	private String hostName = "127.0.0.1";
+	private int portNumber = 8080;
+
+	public SelectorSocketClient(SocketEventLoop eventLoop, String hostName, int portNumber, int reconnectInterval) {
+		this.eventLoop = eventLoop;
+
+		setRemoteHost(hostName, portNumber);
+		setReconnectInterval(reconnectInterval);
+	}
+
+	public SelectorSocketClient(SocketEventLoop eventLoop, String hostName, int portNumber) {
+		this(eventLoop, hostName, portNumber, DEFAULT_RECONNECT_TIMEOUT);
+	}
+
+	public void setRemoteHost(String hostName, int portNumber) {
+		this.hostName = hostName;
+		this.portNumber = portNumber;
+	}
+
+	public void setReconnectInterval(int reconnectInterval) {
+		this.reconnectInterval = reconnectInterval;
+	}
+
+	public void setPingStrategy(PingStrategy pingStrategy, int pingInterval) {
+		this.pingStrategy = pingStrategy;
+		this.pingInterval = pingInterval;
+	}
+
+	@Override
+	public String getDescription() {
+		return hostName + ":" + portNumber;
+	}
+
+	@Override
+	public boolean connect(int connectionTimeout) {
+		if (eventLoop.isInEventLoop()) {
+			startConnect(connectionTimeout, null);
+
+			return isOpen;
+		}
+
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+		eventLoop.execute(() -> startConnect(connectionTimeout, result));
+
+		try {
+			return result.get(Math.max(connectionTimeout, 0) + EVENT_LOOP_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			log.warn("waiting for connection to {}:{} failed ({} - {})", hostName, portNumber, e.getClass().getSimpleName(), e.getMessage());
+
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		log.info("closing the socket to {}:{} without automatic reconnecting", hostName, portNumber);
+
+		isPlannedClose = true;
+
+		if (eventLoop.isInEventLoop()) {
+			closeSocket();
+
+			return;
+		}
+
+		CompletableFuture<Void> result = new CompletableFuture<>();
+
+		eventLoop.execute(() -> {
+			closeSocket();
+			result.complete(null);
+		});
+
+		try {
+			result.get(EVENT_LOOP_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			log.warn("waiting for socket to {}:{} to close failed ({} - {})", hostName, portNumber, e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	@Override
+	public void addEventListener(EventListener eventListener) {
+		eventListeners.add(eventListener);
+
+		// call the onOpen event if the socket is already connected, on the event executor like the other events
+		if (isConnected()) {
+			boolean wasFirstConnect = isFirstConnect;
+
+			eventExecutor.execute(() -> {
+				try {
+					eventListener.onOpen(wasFirstConnect);
+				} catch (Exception e) {
+					log.warn("handling open event of {}:{} failed ({} - {})", hostName, portNumber, e.getClass().getSimpleName(), e.getMessage(), e);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void setEventExecutor(Executor eventExecutor) {
+		this.eventExecutor = eventExecutor;
+	}
+
+	@Override
+	public boolean sendMessage(String format, Object... arguments) {
+		String message = String.format(format, arguments);
+
+		if (!isOpen) {
+			log.warn("requested sending message '{}' to {}:{} but the socket is not connected", message.replace("\n", "\\n"), hostName, portNumber);
+
+			return false;
+		}
+
+		log.trace("sending message: '{}' to {}:{}", message.replace("\n", "\\n"), hostName, portNumber);
+
+		return write(message);
+	}
+
+	@Override
+	public boolean sendRawMessage(CharSequence message) {
+		if (!isOpen) {
+			log.warn("requested sending message '{}' to {}:{} but the socket is not connected", message, hostName, portNumber);
+
+			return false;
+		}
+
+		log.trace("sending message: '{}' to {}:{}", message, hostName, portNumber);
+
+		return write(message);
+	}
+
+	@Override
+	public int getMessageCount() {
+		synchronized (inputQueue) {
+			return inputQueue.size();
+		}
+	}
+
+	@Override
+	public String getMessage() {
+		synchronized (inputQueue) {
+			return inputQueue.poll();
+		}
+	}
+
+	@Override
+	public int getNextMessageId() {
+		return messageCounter.getAndIncrement();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return isOpen;
+	}
+
+	@Override
+	public void onConnectable() {
+		try {
+			if (!channel.finishConnect()) {
+				return;
+			}
+		} catch (IOException e) {
+			handleConnectionFailed(e);
+
+			return;
+		}
+
+		handleConnected();
+	}
+
+	@Override
+	public void onReadable() {
+		int readCount;
+
+		readBuffer.clear();
+
+		try {
+			readCount = channel.read(readBuffer);
+		} catch (IOException e) {
+			handleConnectionLost(e);
+
+			return;
+		}
+
+		if (readCount < 0) {
+			log.debug("connection to {}:{} was closed by remote host", hostName, portNumber);
+
+			closeSocket();
+
+			return;
+		}
+
+		readBuffer.flip();
+
+		while (readBuffer.hasRemaining()) {
+			byte character = readBuffer.get();
+
+			if (character == '\n') {
+				handleLine(consumeLine());
+			} else if (character != '\r') {
+				appendToLine(character);
+			}
+		}
+	}
+
+	@Override
+	public void onWritable() {
+		try {
+			synchronized (writeLock) {
+				ByteBuffer buffer;
+
+				while ((buffer = outputQueue.peek()) != null) {
+					channel.write(buffer);
+
+					if (buffer.hasRemaining()) {
+						return;
+					}
+
+					outputQueue.poll();
+				}
+
+				selectionKey.interestOps(SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			handleConnectionLost(e);
+		}
+	}
+
+	@Override
+	public void onError(Exception e) {
+		handleConnectionLost(e);
+	}
+
+	private void startConnect(int connectionTimeout, CompletableFuture<Boolean> result) {
+		log.debug("connecting to {}:{}", hostName, portNumber);
+
+		isPlannedClose = false;
+		lastConnectionTimeout = connectionTimeout;
+		connectResult = result;
+
+		boolean isReconnecting = wasEverConnected;
+
+		fireEvent("connecting", eventListener -> eventListener.onConnecting(isReconnecting));
+
+		try {
+			isConnecting = true;
+
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+
+			if (channel.connect(new InetSocketAddress(hostName, portNumber))) {
+				selectionKey = eventLoop.register(channel, SelectionKey.OP_READ, this);
+
+				handleConnected();
+			} else {
+				selectionKey = eventLoop.register(channel, SelectionKey.OP_CONNECT, this);
+				connectTimeout = eventLoop.schedule(
+						() -> handleConnectionFailed(new SocketTimeoutException("connect timed out")),
+						connectionTimeout
+				);
+			}
+		} catch (IOException e) {
+			handleConnectionFailed(e);
+		}
+	}
+
+	private void handleConnected() {
+		clearConnectTimeout();
+
+		isFirstConnect = !wasEverConnected;
+		isConnecting = false;
+		wasEverConnected = true;
+		isOpen = true;
+		lineLength = 0;
+
+		selectionKey.interestOps(outputQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+		clearPingExpiredTimeout();
+		sendPing();
+
+		log.debug("connected to {}:{}", hostName, portNumber);
+
+		boolean wasFirstConnect = isFirstConnect;
+
+		fireEvent("open", eventListener -> eventListener.onOpen(wasFirstConnect));
+
+		completeConnect(true);
+	}
+
+	private void handleConnectionFailed(Exception e) {
+		clearConnectTimeout();
+		closeChannel();
+
+		isConnecting = false;
+
+		boolean wasEverOpened = wasEverConnected;
+
+		fireEvent("connection failed", eventListener -> eventListener.onConnectionFailed(e, wasEverOpened));
+
+		if (wasEverConnected && reconnectInterval >= 0) {
+			log.debug("connecting to {}:{} failed, reconnecting in {}ms", hostName, portNumber, reconnectInterval);
+
+			scheduleReconnect(reconnectInterval);
+		} else {
+			if (!wasEverConnected) {
+				log.warn("connecting to {}:{} failed", hostName, portNumber);
+			} else {
+				log.debug("reconnecting to {}:{} failed", hostName, portNumber);
+			}
+		}
+
+		completeConnect(false);
+	}
+
+	private void handleConnectionLost(Exception e) {
+		if (isPlannedClose) {
+			log.debug("got planned close socket exception for {}:{} ({} - {})", hostName, portNumber, e.getClass().getSimpleName(), e.getMessage());
+		} else {
+			log.warn("got exception for {}:{}, closing socket ({} - {})", hostName, portNumber, e.getClass().getSimpleName(), e.getMessage());
+		}
+
+		closeSocket();
+	}
+
+	private void completeConnect(boolean wasSuccessful) {
+		if (connectResult == null) {
+			return;
+		}
+
+		CompletableFuture<Boolean> result = connectResult;
+		connectResult = null;
+
+		result.complete(wasSuccessful);
+	}
+
+	private void closeSocket() {
+		if (isConnecting) {
+			log.debug("close requested while attempting to connect, avoiding reconnect");
+
+			clearConnectTimeout();
+			closeChannel();
+
+			isConnecting = false;
+			wasEverConnected = false;
+
+			completeConnect(false);
+
+			return;
+		}
+
+		if (!isOpen) {
+			log.debug("close requested but socket is not connected, ignoring");
+
+			return;
+		}
+
+		clearSendPingTimeout();
+		clearPingExpiredTimeout();
+		clearReconnectTimeout();
+
+		log.debug("closing socket connection to {}:{}", hostName, portNumber);
+
+		isOpen = false;
+		closeChannel();
+
+		boolean wasPlannedClose = isPlannedClose;
+
+		fireEvent("close", eventListener -> eventListener.onClose(wasPlannedClose));
+
+		log.debug("socket to {}:{} has been closed", hostName, portNumber);
+
+		if (wasEverConnected && reconnectInterval >= 0 && !isPlannedClose) {
+			scheduleReconnect(reconnectInterval);
+		}
+	}
+
+	private void closeChannel() {
+		if (selectionKey != null) {
+			selectionKey.cancel();
+			selectionKey = null;
+		}
+
+		synchronized (writeLock) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					log.warn("closing socket to {}:{} failed ({} - {})", hostName, portNumber, e.getClass().getSimpleName(), e.getMessage());
+				}
+
+				channel = null;
+			}
+
+			outputQueue.clear();
+		}
+	}
+
+	private void scheduleReconnect(int timeout) {
+		if (isPlannedClose) {
+			log.warn("scheduling reconnect requested but final close already called, ignoring it");
+
+			return;
+		}
+
+		if (timeout == 0) {
+			reconnect();
+		} else if (timeout > 0) {
+			log.debug("scheduling reconnect to {}:{} in {}ms", hostName, portNumber, timeout);
+
+			clearReconnectTimeout();
+			reconnectTimeout = eventLoop.schedule(this::reconnect, timeout);
+		}
+	}
+
+	private void reconnect() {
+		reconnectTimeout = null;
+
+		if (isPlannedClose) {
+			log.warn("reconnect requested but final close already called, ignoring it");
+
+			return;
+		}
+
+		if (isOpen) {
+			log.debug("reconnect requested but the connection is already open, closing existing");
+
+			closeSocket();
+		}
+
+		log.debug("attempting to reconnect to {}:{}", hostName, portNumber);
+
+		startConnect(lastConnectionTimeout, null);
+	}
+
+	private boolean write(CharSequence message) {
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(message));
+
+		synchronized (writeLock) {
+			SocketChannel currentChannel = channel;
+
+			if (currentChannel == null) {
+				return false;
+			}
+
+			// write directly if nothing is waiting, only fall back to the selector if the socket buffer is full
+			if (outputQueue.isEmpty()) {
+				try {
+					currentChannel.write(buffer);
+				} catch (IOException e) {
+					eventLoop.execute(() -> handleConnectionLost(e));
+
+					return false;
+				}
+
+				if (!buffer.hasRemaining()) {
+					return true;
+				}
+			}
+
+			outputQueue.add(buffer);
+		}
+
+		eventLoop.execute(() -> {
+			if (selectionKey != null && selectionKey.isValid()) {
+				selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		});
+
+		return true;
+	}
+
+	private void handleLine(String message) {
+		if (pingStrategy != null && pingStrategy.isPingResponse(message)) {
+			long pingLatency = Clock.MONOTONIC.now() - requestPingTime;
+
+			log.trace("got ping response for {}:{} '{}' in {}ms", hostName, portNumber, message, pingLatency);
+
+			clearPingExpiredTimeout();
+			clearSendPingTimeout();
+
+			log.trace("setting ping timeout at {}ms", pingInterval);
+
+			sendPingTimeout = eventLoop.schedule(() -> {
+				sendPingTimeout = null;
+
+				if (!isOpen) {
+					log.debug("ping timeout reached but connection has been lost, skipping it");
+
+					return;
+				}
+
+				sendPing();
+			}, pingInterval);
+
+			return;
+		}
+
+		log.trace("received message from {}:{}: '{}'", hostName, portNumber, message);
+
+		synchronized (inputQueue) {
+			if (inputQueue.size() >= MAX_QUEUED_MESSAGES) {
+				inputQueue.poll();
+			}
+
+			inputQueue.add(message);
+		}
+
+		for (EventListener eventListener : eventListeners) {
+			eventListener.onMessageReceived(message);
+		}
+	}
+
+	// delivers a connection event to all the listeners on the event executor, in the order the events happened
+	private void fireEvent(String name, Consumer<EventListener> event) {
+		eventExecutor.execute(() -> {
+			for (EventListener eventListener : eventListeners) {
+				try {
+					event.accept(eventListener);
+				} catch (Exception e) {
+					log.warn("handling {} event of {}:{} failed ({} - {})", name, hostName, portNumber, e.getClass().getSimpleName(), e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	private void appendToLine(byte character) {
+		if (lineLength == lineBuffer.length) {
+			lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+		}
+
+		lineBuffer[lineLength++] = character;
+	}
+
+	private String consumeLine() {
+		String line = new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8);
+
+		lineLength = 0;
+
+		return line;
+	}
+
+	private void sendPing() {
+		if (pingStrategy == null) {
+			log.info("ping strategy has not been set for {}:{}, not using pinging", hostName, portNumber);
+
+			return;
+		}
+
+		String pingMessage = pingStrategy.getPingMessage();
+
+		log.trace("sending ping message to {}:{}: {}", hostName, portNumber, pingMessage);
+
+		requestPingTime = Clock.MONOTONIC.now();
+		write(pingMessage);
+
+		if (pingExpiredTimeout != null) {
+			log.warn("setting ping timeout but one already exists, ignoring the request");
+
+			return;
+		}
+
+		pingExpiredTimeout = eventLoop.schedule(() -> {
+			log.warn("ping timed out for {}:{}, connection must have been lost", hostName, portNumber);
+
+			pingExpiredTimeout = null;
+
+			closeSocket();
+		}, pingInterval);
+	}
+
+	private void clearConnectTimeout() {
+		if (connectTimeout == null) {
+			return;
+		}
+
+		connectTimeout.cancel();
+		connectTimeout = null;
+	}
+
+	private void clearSendPingTimeout() {
+		if (sendPingTimeout == null) {
+			return;
+		}
+
+		log.trace("clearing send ping timeout for {}:{}", hostName, portNumber);
+
+		sendPingTimeout.cancel();
+		sendPingTimeout = null;
+	}
+
+	private void clearPingExpiredTimeout() {
+		if (pingExpiredTimeout == null) {
+			return;
+		}
+
+		log.trace("clearing ping expired timeout for {}:{}", hostName, portNumber);
+
+		pingExpiredTimeout.cancel();
+		pingExpiredTimeout = null;
+	}
+
+	private void clearReconnectTimeout() {
+		if (reconnectTimeout == null) {
+			return;
+		}
+
+		log.trace("clearing reconnect timeout for {}:{}", hostName, portNumber);
+
+		reconnectTimeout.cancel();
+		reconnectTimeout = null;
+	}
+}
@@ -8,34 +8,42 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class SocketClient implements MessageTransport {
 
-	public interface PingStrategy {
-		String getPingMessage();
-		boolean isPingResponse(String message);
-	}
+	public interface PingStrategy extends MessageTransport.PingStrategy {}
 
 	private static int DEFAULT_RECONNECT_TIMEOUT = 5000;
+	private static int workerThreadCount = 0;
+
+	// timeouts that block (closing the socket, reconnecting) are handed off from the timer thread to reused workers
+	private static final ExecutorService blockingTaskExecutor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "SocketClientWorker-" + (workerThreadCount++));
+		thread.setDaemon(true);
+
+		return thread;
+	});
 
 	// runtime info
     private Socket socket;
 	private BufferedReader socketIn;
     private PrintWriter socketOut;
     private Thread inputThread;
-    private Thread sendPingTimeout;
-    private Thread pingExpiredTimeout;
-    private Thread reconnectTimeout;
-	private PingStrategy pingStrategy = null;
+    private HashedWheelTimer timer = HashedWheelTimer.getShared();
+    private HashedWheelTimer.Timeout sendPingTimeout;
+    private HashedWheelTimer.Timeout pingExpiredTimeout;
+    private HashedWheelTimer.Timeout reconnectTimeout;
+	private MessageTransport.PingStrategy pingStrategy = null;
     private final Queue<String> inputQueue = new LinkedList<>();
     private final List<EventListener> eventListeners = Collections.synchronizedList(new ArrayList<>());
     private int reconnectInterval = -1;
@@ -46,7 +54,6 @@ public class SocketClient implements MessageTransport {
 	private boolean isPlannedClose = false;
 	private long requestPingTime = 0;
 	private static int inputThreadCount = 0;
-	private static int timeoutThreadCount = 0;
 	private int pingInterval = 0;
     private int lastConnectionTimeout = 0;
 	private String hostName = "127.0.0.1";
@@ -80,7 +87,17 @@ public class SocketClient implements MessageTransport {
 	}
 
 	@SuppressWarnings("unused")
-	public void setPingStrategy(PingStrategy pingStrategy, int pingInterval) {
+	public void setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
+	@SuppressWarnings("unused")
+	public HashedWheelTimer getTimer() {
+		return timer;
+	}
+
+	@SuppressWarnings("unused")
+	public void setPingStrategy(MessageTransport.PingStrategy pingStrategy, int pingInterval) {
 		this.pingStrategy = pingStrategy;
 		this.pingInterval = pingInterval;
 	}
@@ -204,6 +221,21 @@ public class SocketClient implements MessageTransport {
         return !socketOut.checkError();
     }
 
+    @Override
+    public boolean sendRawMessage(CharSequence message) {
+        if (socketOut == null) {
+            log.warn("requested sending message '{}' to {}:{} but the output stream is not available", message, hostName, portNumber);
+
+            return false;
+        }
+
+        log.trace("sending message: '{}' to {}:{}", message, hostName, portNumber);
+
+        socketOut.append(message);
+
+        return !socketOut.checkError();
+    }
+
     public int getMessageCount() {
         return inputQueue.size();
     }
@@ -305,7 +337,7 @@ public class SocketClient implements MessageTransport {
 		} else if (timeout > 0) {
 			log.debug("scheduling reconnect to {}:{} in {}ms", hostName, portNumber, timeout);
 
-			reconnectTimeout = setTimeout(this::reconnect, timeout);
+			reconnectTimeout = setBlockingTimeout(this::reconnect, timeout);
 		}
 	}
 
@@ -341,7 +373,7 @@ public class SocketClient implements MessageTransport {
 
 					if (message != null) {
 						if (pingStrategy != null && pingStrategy.isPingResponse(message)) {
-							long currentTime = now();
+							long currentTime = Clock.MONOTONIC.now();
 							long pingLatency = currentTime - requestPingTime;
 
 							log.trace("got ping response for {}:{} '{}' in {}ms", hostName, portNumber, message, pingLatency);
@@ -350,7 +382,7 @@ public class SocketClient implements MessageTransport {
 
 							log.trace("setting ping timeout at {}ms", pingInterval);
 
-							sendPingTimeout = setTimeout(() -> {
+							sendPingTimeout = setBlockingTimeout(() -> {
 								if (!isConnected()) {
 									log.debug("ping timeout reached but connection has been lost, skipping it");
 
@@ -411,7 +443,7 @@ public class SocketClient implements MessageTransport {
 
 		log.trace("clearing send ping timeout for {}:{}", hostName, portNumber);
 
-		sendPingTimeout.interrupt();
+		sendPingTimeout.cancel();
 		sendPingTimeout = null;
 	}
 
@@ -422,7 +454,7 @@ public class SocketClient implements MessageTransport {
 
 		log.trace("clearing ping expired timeout for {}:{}", hostName, portNumber);
 
-		pingExpiredTimeout.interrupt();
+		pingExpiredTimeout.cancel();
 		pingExpiredTimeout = null;
 	}
 
@@ -433,7 +465,7 @@ public class SocketClient implements MessageTransport {
 
 		log.trace("clearing reconnect timeout for {}:{}", hostName, portNumber);
 
-		reconnectTimeout.interrupt();
+		reconnectTimeout.cancel();
 		reconnectTimeout = null;
 	}
 
@@ -448,7 +480,7 @@ public class SocketClient implements MessageTransport {
 
 		log.trace("sending ping message to {}:{}: {}", hostName, portNumber, pingMessage);
 
-		requestPingTime = now();
+		requestPingTime = Clock.MONOTONIC.now();
 		sendMessage(pingMessage);
 
 		if (pingExpiredTimeout != null) {
@@ -457,7 +489,7 @@ public class SocketClient implements MessageTransport {
 			return;
 		}
 
-		pingExpiredTimeout = setTimeout(() -> {
+		pingExpiredTimeout = setBlockingTimeout(() -> {
 			log.warn("ping timed out for {}:{}, connection must have been lost", hostName, portNumber);
 
 			pingExpiredTimeout = null;
@@ -466,23 +498,11 @@ public class SocketClient implements MessageTransport {
 		}, pingInterval);
 	}
 
-	private Thread setTimeout(Runnable runnable, int delay){
-		Thread thread = new Thread(() -> {
-			try {
-				Thread.sleep(delay);
-
-				runnable.run();
-			}  catch (Exception e) {
-				log.trace("timeout was interrupted ({} - {})", e.getClass().getSimpleName(), e.getMessage());
-			}
-		}, "Timeout-" + (timeoutThreadCount++));
-
-		thread.start();
-
-		return thread;
+	private HashedWheelTimer.Timeout setTimeout(Runnable runnable, int delay) {
+		return timer.schedule(runnable, delay);
 	}
 
-	private long now() {
-		return Calendar.getInstance().getTimeInMillis();
+	private HashedWheelTimer.Timeout setBlockingTimeout(Runnable runnable, int delay) {
+		return timer.schedule(() -> blockingTaskExecutor.execute(runnable), delay);
 	}
 }
\ No newline at end of file
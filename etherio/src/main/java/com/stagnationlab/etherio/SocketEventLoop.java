@@ -0,0 +1,254 @@
+package com.stagnationlab.etherio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Single threaded event loop multiplexing any number of non-blocking socket channels on one selector.
+ *
+ * All channel handler callbacks, submitted tasks and scheduled tasks are run on the event loop thread so the
+ * transports using it do not need to synchronize their internal state.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+@Slf4j
+public class SocketEventLoop {
+
+	public interface ChannelHandler {
+		default void onConnectable() {}
+		default void onReadable() {}
+		default void onWritable() {}
+		default void onError(Exception e) {}
+	}
+
+	public class ScheduledTask implements Comparable<ScheduledTask> {
+		private final Runnable runnable;
+		private final long deadline;
+		private long sequence;
+		private volatile boolean isCancelled = false;
+
+		ScheduledTask(Runnable runnable, long deadline) {
+			this.runnable = runnable;
+			this.deadline = deadline;
+		}
+
+		public void cancel() {
+			isCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return isCancelled;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask other) {
+			if (deadline != other.deadline) {
+				return deadline < other.deadline ? -1 : 1;
+			}
+
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final String name;
+	private final Selector selector;
+	private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+	private final AtomicBoolean isWakeupPending = new AtomicBoolean(false);
+	private Thread thread;
+	private long scheduledTaskCounter = 0;
+	private volatile boolean isRunning = false;
+
+	public SocketEventLoop(String name) {
+		this.name = name;
+
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new RuntimeException("opening selector for event loop '" + name + "' failed", e);
+		}
+	}
+
+	public synchronized void start() {
+		if (isRunning) {
+			return;
+		}
+
+		log.debug("starting event loop '{}'", name);
+
+		isRunning = true;
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void shutdown() {
+		if (!isRunning) {
+			return;
+		}
+
+		log.debug("shutting down event loop '{}'", name);
+
+		isRunning = false;
+		selector.wakeup();
+
+		if (Thread.currentThread() == thread) {
+			return;
+		}
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			log.warn("joining event loop '{}' thread failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	public boolean isInEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	public int getChannelCount() {
+		return selector.keys().size();
+	}
+
+	public void execute(Runnable task) {
+		taskQueue.add(task);
+
+		if (!isInEventLoop() && isWakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	public ScheduledTask schedule(Runnable runnable, long delayMs) {
+		ScheduledTask scheduledTask = new ScheduledTask(runnable, Clock.MONOTONIC.now() + delayMs);
+
+		if (isInEventLoop()) {
+			addScheduledTask(scheduledTask);
+		} else {
+			execute(() -> addScheduledTask(scheduledTask));
+		}
+
+		return scheduledTask;
+	}
+
+	SelectionKey register(SelectableChannel channel, int interestOps, ChannelHandler handler) throws ClosedChannelException {
+		if (!isInEventLoop()) {
+			throw new IllegalStateException("channels must be registered from the event loop thread");
+		}
+
+		return channel.register(selector, interestOps, handler);
+	}
+
+	private void addScheduledTask(ScheduledTask scheduledTask) {
+		// tasks with equal deadlines run in submission order
+		scheduledTask.sequence = scheduledTaskCounter++;
+		scheduledTasks.add(scheduledTask);
+	}
+
+	private void run() {
+		log.debug("event loop '{}' started", name);
+
+		while (isRunning) {
+			try {
+				long selectTimeout = runScheduledTasks();
+
+				if (taskQueue.isEmpty()) {
+					selector.select(selectTimeout);
+				} else {
+					selector.selectNow();
+				}
+
+				isWakeupPending.set(false);
+
+				processSelectedKeys();
+				runPendingTasks();
+			} catch (Exception e) {
+				log.warn("event loop '{}' iteration failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warn("closing event loop '{}' selector failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage());
+		}
+
+		log.debug("event loop '{}' completed", name);
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			iterator.remove();
+
+			ChannelHandler handler = (ChannelHandler)key.attachment();
+
+			try {
+				if (key.isValid() && key.isConnectable()) {
+					handler.onConnectable();
+				}
+
+				if (key.isValid() && key.isReadable()) {
+					handler.onReadable();
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					handler.onWritable();
+				}
+			} catch (Exception e) {
+				handler.onError(e);
+			}
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+
+		while ((task = taskQueue.poll()) != null) {
+			runSafely(task);
+		}
+	}
+
+	private long runScheduledTasks() {
+		long currentTime = Clock.MONOTONIC.now();
+
+		while (!scheduledTasks.isEmpty()) {
+			ScheduledTask scheduledTask = scheduledTasks.peek();
+
+			if (scheduledTask.isCancelled) {
+				scheduledTasks.poll();
+
+				continue;
+			}
+
+			if (scheduledTask.deadline > currentTime) {
+				return Math.max(scheduledTask.deadline - currentTime, 1);
+			}
+
+			scheduledTasks.poll();
+			runSafely(scheduledTask.runnable);
+		}
+
+		// zero means block until woken up
+		return 0;
+	}
+
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			log.warn("event loop '{}' task failed ({} - {})", name, e.getClass().getSimpleName(), e.getMessage(), e);
+		}
+	}
+}
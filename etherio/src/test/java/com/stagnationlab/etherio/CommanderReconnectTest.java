@@ -0,0 +1,150 @@
+package com.stagnationlab.etherio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the port states are sent to the board again after the connection is lost.
+ */
+public class CommanderReconnectTest {
+
+	private static final int RECONNECT_INTERVAL = 100;
+	private static final int TIMEOUT = 5000;
+	private static final String PORT_MODE_COMMAND = "port:1:mode:DIGITAL_OUT";
+
+	private FakeBoard board;
+	private SocketEventLoop eventLoop;
+	private MessageDispatcher messageDispatcher;
+	private Commander commander;
+
+	@Before
+	public void setUp() throws IOException {
+		board = new FakeBoard();
+		board.start();
+
+		eventLoop = new SocketEventLoop("TestEventLoop");
+		eventLoop.start();
+
+		messageDispatcher = new MessageDispatcher("TestDispatcher");
+		commander = new Commander(
+				new SelectorSocketClient(eventLoop, "127.0.0.1", board.getPortNumber(), RECONNECT_INTERVAL),
+				messageDispatcher
+		);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		commander.close();
+		eventLoop.shutdown();
+		messageDispatcher.shutdown();
+		board.close();
+	}
+
+	@Test
+	public void resendsPortModeAfterReconnect() throws Exception {
+		assertTrue("connecting to the board failed", commander.connect(TIMEOUT));
+
+		new PortController(1, commander).setPortMode(PortController.PortMode.DIGITAL_OUT).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		assertTrue("port mode was not sent", board.awaitCommand(PORT_MODE_COMMAND));
+
+		board.dropConnection();
+
+		assertTrue("port mode was not sent again after reconnecting", board.awaitCommand(PORT_MODE_COMMAND));
+	}
+
+	// answers every command with OK, the commands of a batch are recorded one by one
+	private static class FakeBoard {
+
+		private final ServerSocket serverSocket;
+		private final BlockingQueue<String> receivedCommands = new LinkedBlockingQueue<>();
+		private volatile Socket socket;
+
+		FakeBoard() throws IOException {
+			serverSocket = new ServerSocket(0);
+		}
+
+		int getPortNumber() {
+			return serverSocket.getLocalPort();
+		}
+
+		void start() {
+			Thread thread = new Thread(this::run, "FakeBoard");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		boolean awaitCommand(String expectedCommand) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			long remainingTime;
+
+			while ((remainingTime = deadline - System.currentTimeMillis()) > 0) {
+				String command = receivedCommands.poll(remainingTime, TimeUnit.MILLISECONDS);
+
+				if (expectedCommand.equals(command)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		void dropConnection() throws IOException {
+			socket.close();
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+
+		private void run() {
+			while (!serverSocket.isClosed()) {
+				try (Socket acceptedSocket = serverSocket.accept()) {
+					socket = acceptedSocket;
+
+					serve(acceptedSocket);
+				} catch (IOException e) {
+					// the connection was dropped or the board closed
+				}
+			}
+		}
+
+		private void serve(Socket acceptedSocket) throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(acceptedSocket.getInputStream(), StandardCharsets.UTF_8));
+			Writer writer = new OutputStreamWriter(acceptedSocket.getOutputStream(), StandardCharsets.UTF_8);
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				Command command = Command.parse(line);
+				StringBuilder response = new StringBuilder().append(command.id).append(":OK");
+
+				if (command.name.equals("batch")) {
+					for (int i = 0; i < command.getArgumentCount(); i++) {
+						receivedCommands.add(command.getString(i));
+						response.append(":OK");
+					}
+				} else {
+					receivedCommands.add(line.substring(line.indexOf(':') + 1));
+				}
+
+				writer.write(response.append('\n').toString());
+				writer.flush();
+			}
+		}
+	}
+}